@@ -0,0 +1,156 @@
+package com.clinikdb.dbcrypt;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Test class to verify the hex chunk framing of readBlob and writeBlob against
+ * an in-memory backend
+ */
+public class BlobTest {
+    private static final int CHUNK = 16;
+    private static final Pattern CHUNK_INSERT = Pattern
+            .compile("INSERT INTO temp\\.blob_chunk \\(data\\) VALUES \\(X'([0-9A-F]*)'\\)");
+    private static int failures = 0;
+
+    public static void main(String[] args) {
+        try {
+            File workingDir = Files.createTempDirectory("blob-test").toFile();
+            byte[] data = new byte[CHUNK * 3 + 5];
+            new Random(42).nextBytes(data);
+
+            System.out.println("=== Hex codec ===");
+            byte[] buffer = new byte[data.length];
+            String hex = SqliteTool.encodeHex(data, data.length);
+            check("round trip", SqliteTool.decodeHex(hex, buffer) == data.length && Arrays.equals(buffer, data));
+            check("lower case digits accepted", SqliteTool.decodeHex("0aff", buffer) == 2 && buffer[0] == 10
+                    && buffer[1] == (byte) 0xFF);
+            check("odd length rejected", throwsIOException(() -> SqliteTool.decodeHex("abc", buffer)));
+            check("non-hex digit rejected", throwsIOException(() -> SqliteTool.decodeHex("zz", buffer)));
+
+            System.out.println("\n=== readBlob ===");
+            List<String> chunks = new ArrayList<>(Arrays.asList("ok", "blob_chunk"));
+            for (int i = 0; i < data.length; i += CHUNK) {
+                chunks.add(SqliteTool.encodeHex(Arrays.copyOfRange(data, i, Math.min(data.length, i + CHUNK)),
+                        Math.min(CHUNK, data.length - i)));
+            }
+            FakeBackend[] reader = new FakeBackend[1];
+            SqliteTool tool = tool(workingDir, reader, (dbPath, sql) -> chunks);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            check("chunks decoded after ok and header",
+                    tool.readBlob("scans", "content", 7, out) == data.length && Arrays.equals(out.toByteArray(), data));
+            String query = reader[0].getExecuted().get(0);
+            check("text values read as bytes", query.contains("CAST(b.\"content\" AS BLOB)"));
+            check("chunk size used", query.contains("substr(CAST(b.\"content\" AS BLOB), blob_chunk.start_pos, "
+                    + CHUNK + ")"));
+
+            tool = tool(workingDir, reader, (dbPath, sql) -> Collections.singletonList("ok"));
+            check("NULL value or missing row reads nothing", tool.readBlob("scans", "content", 8, out) == 0);
+
+            check("oversized chunk rejected", throwsIOException(() -> tool(workingDir, reader,
+                    (dbPath, sql) -> Arrays.asList("ok", "blob_chunk", "00".repeat(CHUNK + 1)))
+                    .readBlob("scans", "content", 7, new ByteArrayOutputStream())));
+            check("chunk after a short one rejected", throwsIOException(() -> tool(workingDir, reader,
+                    (dbPath, sql) -> Arrays.asList("ok", "blob_chunk", "0000", "0000"))
+                    .readBlob("scans", "content", 7, new ByteArrayOutputStream())));
+
+            System.out.println("\n=== writeBlob ===");
+            for (String version : new String[] { "3.46.1", "3.40.0" }) {
+                tool = tool(workingDir, reader, (dbPath, sql) -> sql.contains("sqlite_version()")
+                        ? Arrays.asList("ok", "version", version)
+                        : Arrays.asList("ok", "blob_length", String.valueOf(data.length)));
+                check(version + ": bytes stored", tool.writeBlob("scans", "content", 7,
+                        new ByteArrayInputStream(data)) == data.length);
+
+                String script = reader[0].getExecuted().get(1);
+                ByteArrayOutputStream sent = new ByteArrayOutputStream();
+                Matcher matcher = CHUNK_INSERT.matcher(script);
+                int count = 0;
+                while (matcher.find()) {
+                    byte[] decoded = new byte[CHUNK];
+                    sent.write(decoded, 0, SqliteTool.decodeHex(matcher.group(1), decoded));
+                    count++;
+                }
+                check(version + ": chunks carry the data in order",
+                        count == 4 && Arrays.equals(sent.toByteArray(), data));
+                check(version + ": one transaction", script.startsWith("BEGIN;") && script.trim().endsWith("COMMIT;"));
+                boolean ordered = version.startsWith("3.46");
+                check(version + (ordered ? ": ordered group_concat" : ": order checked before commit"), ordered
+                        ? script.contains("group_concat(data, '' ORDER BY seq)") && !script.contains("blob_check")
+                        : script.contains("RAISE(ABORT") && script.indexOf("blob_check_order")
+                                < script.indexOf("COMMIT;"));
+            }
+
+            tool = tool(workingDir, reader, (dbPath, sql) -> sql.contains("sqlite_version()")
+                    ? Arrays.asList("ok", "version", "3.46.1") : Collections.singletonList("ok"));
+            try {
+                tool.writeBlob("scans", "content", 99, new ByteArrayInputStream(data));
+                check("missing row rejected", false);
+            } catch (SQLCipherException e) {
+                check("missing row rejected", e.getMessage().contains("no such row"));
+            }
+
+            tool = tool(workingDir, reader, (dbPath, sql) -> sql.contains("sqlite_version()")
+                    ? Arrays.asList("ok", "version", "3.46.1") : Arrays.asList("ok", "blob_length", "3"));
+            try {
+                tool.writeBlob("scans", "content", 7, new ByteArrayInputStream(data));
+                check("length mismatch rejected", false);
+            } catch (SQLCipherException e) {
+                check("length mismatch rejected", e.getMessage().contains("3 bytes"));
+            }
+
+            workingDir.delete();
+        } catch (Exception e) {
+            failures++;
+            System.err.println("✗ Error occurred:");
+            e.printStackTrace();
+        }
+
+        System.out.println(failures == 0 ? "\n✓✓✓ ALL BLOB TESTS PASSED ✓✓✓"
+                : "\n✗✗✗ " + failures + " BLOB TEST(S) FAILED ✗✗✗");
+        System.out.println("\n=== All Tests Complete ===");
+    }
+
+    private interface IoAction {
+        void run() throws Exception;
+    }
+
+    private static boolean throwsIOException(IoAction action) throws Exception {
+        try {
+            action.run();
+            return false;
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    /**
+     * @param backend receives the backend the tool was opened with
+     */
+    private static SqliteTool tool(File workingDir, FakeBackend[] backend, FakeBackend.Responder responder)
+            throws IOException {
+        SqliteTool tool = new SqliteTool(() -> backend[0] = new FakeBackend(responder));
+        tool.setBlobChunkSize(CHUNK);
+        tool.initDb("clinic.db", "key", false, workingDir);
+        return tool;
+    }
+
+    private static void check(String name, boolean passed) {
+        if (passed) {
+            System.out.println("✓ " + name);
+        } else {
+            failures++;
+            System.err.println("✗ " + name);
+        }
+    }
+}
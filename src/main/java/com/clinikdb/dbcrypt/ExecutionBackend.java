@@ -0,0 +1,105 @@
+package com.clinikdb.dbcrypt;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Runs SQL against one encrypted database on behalf of {@link SqliteTool}.
+ *
+ * Output is streamed as CSV lines, a header line followed by one line per
+ * row, the same shape the sqlcipher shell produces with {@code .mode csv} and
+ * {@code .headers on}. A backend instance serves one database at a time and is
+ * not thread-safe, except for {@link #cancel()}.
+ *
+ * @see ShellProcessBackend
+ * @see JdbcBackend
+ */
+public interface ExecutionBackend {
+
+	/**
+	 * How long a statement waits for a lock held by another connection, e.g. a
+	 * snapshot refresh, before it fails with "database is locked".
+	 */
+	int BUSY_TIMEOUT_MILLIS = 5000;
+
+	/**
+	 * Receives output lines as they are produced.
+	 */
+	@FunctionalInterface
+	interface RowSink {
+		void accept(String line) throws IOException, SQLCipherException;
+	}
+
+	/**
+	 * Produces the statements of a script one at a time.
+	 */
+	@FunctionalInterface
+	interface StatementSource {
+		void writeTo(StatementWriter writer) throws IOException, SQLCipherException;
+	}
+
+	@FunctionalInterface
+	interface StatementWriter {
+		void write(String statement) throws IOException, SQLCipherException;
+	}
+
+	/**
+	 * Prepares the backend for the given database.
+	 *
+	 * @param workingDir directory the backend may use for temporary files
+	 */
+	void open(String dbPath, String passkey, File workingDir, boolean enableLogging) throws IOException;
+
+	/**
+	 * Executes one or more SQL statements and streams their output to the sink.
+	 *
+	 * @throws SQLCipherException if the database reports an error, including a
+	 *                            wrong key
+	 */
+	void execute(String sql, RowSink sink) throws IOException, InterruptedException, SQLCipherException;
+
+	/**
+	 * Executes statements as they are produced, in one transaction that is rolled
+	 * back at the first error. Lets callers send scripts that are too large to
+	 * build as a single string.
+	 *
+	 * The default implementation collects the script and runs it through
+	 * {@link #execute(String, RowSink)}.
+	 */
+	default void executeScript(StatementSource script, RowSink sink)
+			throws IOException, InterruptedException, SQLCipherException {
+		StringBuilder sql = new StringBuilder("BEGIN;\n");
+		script.writeTo(statement -> sql.append(statement).append('\n'));
+		sql.append("COMMIT;");
+		execute(sql.toString(), sink);
+	}
+
+	/**
+	 * Copies one BLOB value to the output in a single pass, for backends that
+	 * can read a value incrementally instead of one hex-encoded chunk per query.
+	 *
+	 * The default implementation returns -1, in which case
+	 * {@link SqliteTool#readBlob} reads the value in chunks through
+	 * {@link #execute(String, RowSink)}.
+	 *
+	 * @return the number of bytes written, 0 for an empty or NULL value or a
+	 *         missing row, or -1 if this backend doesn't support it
+	 */
+	default long readBlob(String table, String column, long rowid, OutputStream out)
+			throws IOException, InterruptedException, SQLCipherException {
+		return -1;
+	}
+
+	/**
+	 * Stops the statement running on another thread, which then fails with a
+	 * {@link SQLCipherException}, and refuses further statements until the next
+	 * {@link #open}. This is the one method that may be called concurrently.
+	 */
+	void cancel();
+
+	/**
+	 * Releases everything acquired in {@link #open}. Safe to call more than once.
+	 */
+	void close();
+}
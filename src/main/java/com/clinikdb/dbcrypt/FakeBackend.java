@@ -0,0 +1,86 @@
+package com.clinikdb.dbcrypt;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.Supplier;
+
+/**
+ * In-memory {@link ExecutionBackend} for deterministic checks: every call is
+ * answered by a {@link Responder} with canned output lines, without a shell or
+ * a database file.
+ */
+class FakeBackend implements ExecutionBackend {
+
+    /** Answers one call to {@link #execute}. */
+    @FunctionalInterface
+    interface Responder {
+        /**
+         * @return the output lines, or null to block until the backend is
+         *         cancelled
+         */
+        List<String> respond(String dbPath, String sql) throws InterruptedException, SQLCipherException;
+    }
+
+    private final Responder responder;
+    private final List<String> executed = Collections.synchronizedList(new ArrayList<>());
+    private final CountDownLatch cancelled = new CountDownLatch(1);
+    private String dbPath;
+
+    FakeBackend(Responder responder) {
+        this.responder = responder;
+    }
+
+    static Supplier<ExecutionBackend> factory(Responder responder) {
+        return () -> new FakeBackend(responder);
+    }
+
+    @Override
+    public void open(String dbPath, String passkey, File workingDir, boolean enableLogging) {
+        this.dbPath = dbPath;
+    }
+
+    @Override
+    public void execute(String sql, RowSink sink) throws IOException, InterruptedException, SQLCipherException {
+        executed.add(sql);
+        if (cancelled.getCount() == 0) {
+            throw new SQLCipherException("SQLCipher execution was cancelled", 1, Collections.emptyList());
+        }
+
+        List<String> output = responder.respond(dbPath, sql);
+        if (output == null) {
+            cancelled.await();
+            throw new SQLCipherException("SQLCipher execution was cancelled", 1, Collections.emptyList());
+        }
+        for (String line : output) {
+            sink.accept(line);
+        }
+    }
+
+    @Override
+    public void cancel() {
+        cancelled.countDown();
+    }
+
+    @Override
+    public void close() {
+    }
+
+    String getDbPath() {
+        return dbPath;
+    }
+
+    boolean isCancelled() {
+        return cancelled.getCount() == 0;
+    }
+
+    /**
+     * @return the SQL of every call to {@link #execute}, in order
+     */
+    List<String> getExecuted() {
+        return executed;
+    }
+}
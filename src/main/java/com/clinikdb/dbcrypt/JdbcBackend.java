@@ -0,0 +1,404 @@
+package com.clinikdb.dbcrypt;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * In-process {@link ExecutionBackend} that talks to SQLCipher through JDBC
+ * instead of starting the shell for every call.
+ *
+ * One connection is kept open between {@link #open} and {@link #close}, so the
+ * key is derived once and no process is forked per statement. This class only
+ * depends on {@code java.sql}; the supported driver is sqlite-jdbc-crypt
+ * ({@code io.github.willena:sqlite-jdbc}), the Xerial driver built with SQLite3
+ * Multiple Ciphers, which must be on the runtime classpath. It is configured for
+ * the SQLCipher 3 format the shell uses.
+ *
+ * Statements are executed one at a time. Shell dot-commands such as
+ * {@code .backup} are not available in-process.
+ */
+public class JdbcBackend implements ExecutionBackend {
+
+	private static final Logger LOGGER = Logger.getLogger(JdbcBackend.class.getName());
+
+	public static final String DEFAULT_URL_PREFIX = "jdbc:sqlite:";
+
+	private final String urlPrefix;
+	private Connection connection;
+	private boolean enableLogging = false;
+	private volatile Statement runningStatement;
+	private volatile boolean cancelled = false;
+
+	public JdbcBackend() {
+		this(DEFAULT_URL_PREFIX);
+	}
+
+	/**
+	 * @param urlPrefix JDBC URL prefix the database path is appended to
+	 */
+	public JdbcBackend(String urlPrefix) {
+		this.urlPrefix = urlPrefix;
+	}
+
+	@Override
+	public void open(String dbPath, String passkey, File workingDir, boolean enableLogging) throws IOException {
+		this.enableLogging = enableLogging;
+		this.cancelled = false;
+
+		try {
+			connection = DriverManager.getConnection(urlPrefix + dbPath);
+			try (Statement statement = connection.createStatement()) {
+				// SQLite3 Multiple Ciphers' equivalent of cipher_compatibility = 3
+				statement.execute("PRAGMA cipher = 'sqlcipher';");
+				statement.execute("PRAGMA legacy = 3;");
+				statement.execute("PRAGMA key = '" + passkey + "';");
+				statement.execute("PRAGMA busy_timeout = " + BUSY_TIMEOUT_MILLIS + ";");
+			}
+			log(Level.INFO, "Opened in-process connection to: {0}", dbPath);
+		} catch (SQLException e) {
+			close();
+			log(Level.SEVERE, "Failed to open JDBC connection: {0}", e.getMessage());
+			throw new IOException("Failed to open " + urlPrefix + dbPath
+					+ " (is a SQLCipher JDBC driver on the classpath?)", e);
+		}
+	}
+
+	@Override
+	public void execute(String sql, RowSink sink) throws IOException, SQLCipherException {
+		if (connection == null) {
+			throw new IllegalStateException("Backend is not open");
+		}
+
+		for (String statementSql : splitStatements(sql)) {
+			if (statementSql.startsWith(".")) {
+				throw new SQLCipherException("Shell dot-commands are not supported in-process: " + statementSql, 1,
+						Collections.singletonList(statementSql));
+			}
+
+			try (Statement statement = connection.createStatement()) {
+				runningStatement = statement;
+				checkCancelled();
+				if (statement.execute(statementSql)) {
+					try (ResultSet resultSet = statement.getResultSet()) {
+						writeRows(resultSet, sink);
+					}
+				}
+			} catch (SQLException e) {
+				throw toSqlCipherException(e);
+			} finally {
+				runningStatement = null;
+			}
+		}
+	}
+
+	/**
+	 * Executes each statement as soon as it is produced, inside one JDBC
+	 * transaction.
+	 */
+	@Override
+	public void executeScript(StatementSource script, RowSink sink) throws IOException, SQLCipherException {
+		if (connection == null) {
+			throw new IllegalStateException("Backend is not open");
+		}
+
+		boolean committed = false;
+		try (Statement statement = connection.createStatement()) {
+			runningStatement = statement;
+			connection.setAutoCommit(false);
+			script.writeTo(statementSql -> {
+				try {
+					checkCancelled();
+					if (statement.execute(statementSql)) {
+						try (ResultSet resultSet = statement.getResultSet()) {
+							writeRows(resultSet, sink);
+						}
+					}
+				} catch (SQLException e) {
+					throw toSqlCipherException(e);
+				}
+			});
+			connection.commit();
+			committed = true;
+		} catch (SQLException e) {
+			throw toSqlCipherException(e);
+		} finally {
+			runningStatement = null;
+			try {
+				if (!committed) {
+					connection.rollback();
+				}
+				connection.setAutoCommit(true);
+			} catch (SQLException e) {
+				log(Level.WARNING, "Failed to end JDBC transaction: {0}", e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Streams the value through {@link ResultSet#getBinaryStream(int)} in one
+	 * query. {@code java.sql} has no access to SQLite's incremental BLOB I/O, so
+	 * depending on the driver the value may still be held in memory once, but it
+	 * is read and decrypted only once.
+	 */
+	@Override
+	public long readBlob(String table, String column, long rowid, OutputStream out)
+			throws IOException, SQLCipherException {
+		if (connection == null) {
+			throw new IllegalStateException("Backend is not open");
+		}
+
+		String sql = "SELECT " + SqliteTool.quoteIdentifier(column) + " FROM " + SqliteTool.quoteIdentifier(table)
+				+ " WHERE rowid = ?";
+		try (PreparedStatement statement = connection.prepareStatement(sql)) {
+			runningStatement = statement;
+			checkCancelled();
+			statement.setLong(1, rowid);
+			try (ResultSet resultSet = statement.executeQuery()) {
+				if (!resultSet.next()) {
+					return 0;
+				}
+				try (InputStream in = resultSet.getBinaryStream(1)) {
+					if (in == null) {
+						return 0;
+					}
+					long written = in.transferTo(out);
+					out.flush();
+					return written;
+				}
+			}
+		} catch (SQLException e) {
+			throw toSqlCipherException(e);
+		} finally {
+			runningStatement = null;
+		}
+	}
+
+	/**
+	 * Interrupts the running statement through {@link Statement#cancel()}.
+	 */
+	@Override
+	public void cancel() {
+		cancelled = true;
+		Statement statement = runningStatement;
+		if (statement != null) {
+			try {
+				statement.cancel();
+			} catch (SQLException e) {
+				log(Level.WARNING, "Failed to cancel JDBC statement: {0}", e.getMessage());
+			}
+		}
+	}
+
+	@Override
+	public void close() {
+		if (connection != null) {
+			try {
+				connection.close();
+			} catch (SQLException e) {
+				log(Level.WARNING, "Failed to close JDBC connection: {0}", e.getMessage());
+			}
+			connection = null;
+		}
+	}
+
+	private void checkCancelled() throws SQLCipherException {
+		if (cancelled) {
+			throw new SQLCipherException("SQLCipher execution was cancelled", 1, Collections.emptyList());
+		}
+	}
+
+	private SQLCipherException toSqlCipherException(SQLException e) {
+		List<String> errorCodes = Collections.singletonList("Error: " + e.getMessage());
+		SQLCipherException error = SQLCipherException.fromErrorOutput(e.getErrorCode() != 0 ? e.getErrorCode() : 1,
+				errorCodes);
+		log(Level.SEVERE, "SQLCipher error: {0}", error.getMessage());
+		return error;
+	}
+
+	/**
+	 * Writes a result set in the shell's CSV format: the header line before the
+	 * first row, NULL as an empty field.
+	 */
+	private void writeRows(ResultSet resultSet, RowSink sink) throws SQLException, IOException, SQLCipherException {
+		ResultSetMetaData metaData = resultSet.getMetaData();
+		int columns = metaData.getColumnCount();
+		StringBuilder line = new StringBuilder();
+		boolean first = true;
+
+		while (resultSet.next()) {
+			if (first) {
+				for (int i = 1; i <= columns; i++) {
+					appendCsv(line, metaData.getColumnLabel(i), i > 1);
+				}
+				sink.accept(line.toString());
+				first = false;
+			}
+
+			line.setLength(0);
+			for (int i = 1; i <= columns; i++) {
+				Object value = resultSet.getObject(i);
+				String text;
+				if (value == null) {
+					text = "";
+				} else if (value instanceof Double || value instanceof Float) {
+					text = formatReal(((Number) value).doubleValue());
+				} else if (value instanceof byte[]) {
+					text = new String((byte[]) value, StandardCharsets.UTF_8);
+				} else {
+					text = value.toString();
+				}
+				appendCsv(line, text, i > 1);
+			}
+			sink.accept(line.toString());
+		}
+	}
+
+	/**
+	 * Formats a REAL the way SQLite converts it to text for the shell
+	 * ({@code %!.15g}): 15 significant digits, always with a decimal point, and
+	 * an exponent below 1.0e-04 and from 1.0e+15 on. Halfway cases round away from
+	 * zero; older SQLite versions may differ in the last digit there and for
+	 * extreme exponents.
+	 */
+	static String formatReal(double value) {
+		if (Double.isInfinite(value)) {
+			return value > 0 ? "Inf" : "-Inf";
+		}
+		if (value == 0) {
+			return "0.0";
+		}
+
+		BigDecimal rounded = new BigDecimal(value).round(new MathContext(15, RoundingMode.HALF_UP))
+				.stripTrailingZeros();
+		int exponent = rounded.precision() - rounded.scale() - 1;
+		if (exponent < -4 || exponent >= 15) {
+			String digits = rounded.unscaledValue().abs().toString();
+			String mantissa = digits.substring(0, 1) + "." + (digits.length() > 1 ? digits.substring(1) : "0");
+			return (value < 0 ? "-" : "") + mantissa + (exponent < 0 ? "e-" : "e+")
+					+ (Math.abs(exponent) < 10 ? "0" : "") + Math.abs(exponent);
+		}
+		String plain = rounded.toPlainString();
+		return plain.indexOf('.') < 0 ? plain + ".0" : plain;
+	}
+
+	private static void appendCsv(StringBuilder line, String value, boolean separator) {
+		if (separator) {
+			line.append(',');
+		}
+		if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0
+				&& value.indexOf('\r') < 0) {
+			line.append(value);
+		} else {
+			line.append('"').append(value.replace("\"", "\"\"")).append('"');
+		}
+	}
+
+	/**
+	 * Splits a script into statements on semicolons outside of quotes and CREATE
+	 * TRIGGER bodies, dropping comments. Lines starting with a dot are returned
+	 * as-is, like the shell treats them.
+	 */
+	static List<String> splitStatements(String sql) {
+		List<String> statements = new ArrayList<>();
+		StringBuilder current = new StringBuilder();
+		// Open BEGIN and CASE blocks of a trigger; its semicolons only end the
+		// statement outside of them
+		int depth = 0;
+		int n = sql.length();
+
+		for (int i = 0; i < n; i++) {
+			char c = sql.charAt(i);
+
+			if (c == '.' && current.toString().trim().isEmpty()) {
+				int end = sql.indexOf('\n', i);
+				end = end < 0 ? n : end;
+				statements.add(sql.substring(i, end).trim());
+				current.setLength(0);
+				i = end;
+			} else if (c == '\'' || c == '"' || c == '`' || c == '[') {
+				char close = c == '[' ? ']' : c;
+				int end = sql.indexOf(close, i + 1);
+				end = end < 0 ? n - 1 : end;
+				current.append(sql, i, end + 1);
+				i = end;
+			} else if (c == '-' && i + 1 < n && sql.charAt(i + 1) == '-') {
+				// Comments are dropped so they don't hide a dot-command or trigger
+				int end = sql.indexOf('\n', i);
+				end = end < 0 ? n - 1 : end;
+				current.append(' ');
+				i = end;
+			} else if (c == '/' && i + 1 < n && sql.charAt(i + 1) == '*') {
+				int end = sql.indexOf("*/", i + 2);
+				end = end < 0 ? n - 1 : end + 1;
+				current.append(' ');
+				i = end;
+			} else if (isWordChar(c)) {
+				int end = i + 1;
+				while (end < n && isWordChar(sql.charAt(end))) {
+					end++;
+				}
+				String word = sql.substring(i, end);
+				current.append(word);
+				if (word.equalsIgnoreCase("BEGIN") || word.equalsIgnoreCase("CASE")) {
+					depth += isTrigger(current) ? 1 : 0;
+				} else if (word.equalsIgnoreCase("END") && depth > 0) {
+					depth--;
+				}
+				i = end - 1;
+			} else if (c == ';' && depth == 0) {
+				addStatement(statements, current);
+			} else {
+				current.append(c);
+			}
+		}
+		addStatement(statements, current);
+		return statements;
+	}
+
+	private static void addStatement(List<String> statements, StringBuilder current) {
+		String statement = current.toString().trim();
+		if (!statement.isEmpty()) {
+			statements.add(statement);
+		}
+		current.setLength(0);
+	}
+
+	/**
+	 * Letters, digits and the characters of parameter names, so that keywords are
+	 * only recognized as whole words.
+	 */
+	private static boolean isWordChar(char c) {
+		return Character.isLetterOrDigit(c) || c == '_' || c == '$' || c == ':' || c == '@';
+	}
+
+	private static boolean isTrigger(StringBuilder current) {
+		String upper = current.toString().trim().toUpperCase(Locale.ROOT).replaceAll("\\s+", " ");
+		return upper.startsWith("CREATE TRIGGER ") || upper.startsWith("CREATE TEMP TRIGGER ")
+				|| upper.startsWith("CREATE TEMPORARY TRIGGER ");
+	}
+
+	private void log(Level level, String message, Object... params) {
+		if (enableLogging) {
+			LOGGER.log(level, message, params);
+		}
+	}
+}
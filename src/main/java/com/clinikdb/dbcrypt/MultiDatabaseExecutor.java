@@ -0,0 +1,390 @@
+package com.clinikdb.dbcrypt;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs the same SQL against many encrypted databases (one per doctor or clinic)
+ * with a bounded number of parallel workers and merges the results.
+ *
+ * Every database gets its own {@link SqliteTool} and working directory, since a
+ * tool instance holds per-database state and is not safe to share between
+ * threads.
+ *
+ * Outputs are merged in target order as soon as all earlier targets are done,
+ * and released right after. At most {@code maxWorkers} databases are running
+ * or waiting to be merged at any time, so memory stays within about
+ * {@code maxWorkers} times the per-database budget however many targets there
+ * are. A slow database holds back the start of targets more than
+ * {@code maxWorkers} positions after it.
+ */
+public class MultiDatabaseExecutor {
+
+	private static final Logger LOGGER = Logger.getLogger(MultiDatabaseExecutor.class.getName());
+
+	/** Name of the column prepended to every merged row. */
+	public static final String SOURCE_COLUMN = "source_db";
+
+	public enum FailureMode {
+		/** Keep going and report failed databases alongside the results. */
+		COLLECT,
+		/** Cancel the remaining databases and rethrow the first failure. */
+		FAIL_FAST
+	}
+
+	/** A database file and the key used to open it. */
+	public static class DatabaseTarget {
+		private final String dbPath;
+		private final String passkey;
+
+		public DatabaseTarget(String dbPath, String passkey) {
+			this.dbPath = dbPath;
+			this.passkey = passkey;
+		}
+
+		public String getDbPath() {
+			return dbPath;
+		}
+
+		public String getPasskey() {
+			return passkey;
+		}
+
+		@Override
+		public String toString() {
+			return dbPath;
+		}
+	}
+
+	/** A database that could not be queried and the reason why. */
+	public static class Failure {
+		private final DatabaseTarget target;
+		private final Exception exception;
+
+		Failure(DatabaseTarget target, Exception exception) {
+			this.target = target;
+			this.exception = exception;
+		}
+
+		public DatabaseTarget getTarget() {
+			return target;
+		}
+
+		public Exception getException() {
+			return exception;
+		}
+	}
+
+	/**
+	 * Merged CSV output: a single header line starting with
+	 * {@link #SOURCE_COLUMN}, followed by the rows of every database in the order
+	 * the targets were given. Close it to delete the spill file of a large
+	 * result right away.
+	 */
+	public static class Result implements AutoCloseable {
+		private final List<String> rows;
+		private final List<Failure> failures;
+
+		Result(List<String> rows, List<Failure> failures) {
+			this.rows = rows;
+			this.failures = failures;
+		}
+
+		public List<String> getRows() {
+			return Collections.unmodifiableList(rows);
+		}
+
+		public List<Failure> getFailures() {
+			return Collections.unmodifiableList(failures);
+		}
+
+		public boolean hasFailures() {
+			return !failures.isEmpty();
+		}
+
+		/**
+		 * Builds the rows as one JSON string; prefer {@link #writeJson(Writer)} for
+		 * large results.
+		 */
+		public String toJson() throws IOException, SQLCipherException {
+			StringBuilder json = new StringBuilder();
+			SqliteTool.writeJson(rows, json, Long.MAX_VALUE);
+			return json.toString();
+		}
+
+		/**
+		 * Writes the rows as JSON one at a time.
+		 */
+		public void writeJson(Writer out) throws IOException, SQLCipherException {
+			SqliteTool.writeJson(rows, out, Long.MAX_VALUE);
+			out.flush();
+		}
+
+		@Override
+		public void close() {
+			if (rows instanceof SpillableResultList) {
+				((SpillableResultList) rows).close();
+			}
+		}
+	}
+
+	private final int maxWorkers;
+	private final FailureMode failureMode;
+	private final Supplier<ExecutionBackend> backendFactory;
+	private boolean enableLogging = false;
+	private long resultMemoryBudgetBytes = SqliteTool.DEFAULT_RESULT_MEMORY_BUDGET_BYTES;
+
+	public MultiDatabaseExecutor(int maxWorkers, FailureMode failureMode) {
+		this(maxWorkers, failureMode, ShellProcessBackend::new);
+	}
+
+	/**
+	 * @param backendFactory creates the backend of each database's
+	 *                       {@link SqliteTool}, e.g. {@code JdbcBackend::new}
+	 */
+	public MultiDatabaseExecutor(int maxWorkers, FailureMode failureMode, Supplier<ExecutionBackend> backendFactory) {
+		if (maxWorkers < 1) {
+			throw new IllegalArgumentException("maxWorkers must be at least 1");
+		}
+		this.maxWorkers = maxWorkers;
+		this.failureMode = failureMode;
+		this.backendFactory = backendFactory;
+	}
+
+	public void setEnableLogging(boolean enableLogging) {
+		this.enableLogging = enableLogging;
+	}
+
+	/**
+	 * Memory budget for each database's output and for the merged result; see
+	 * {@link SqliteTool#setResultMemoryBudget(long)}.
+	 */
+	public void setResultMemoryBudget(long bytes) {
+		this.resultMemoryBudgetBytes = bytes;
+	}
+
+	public Result execute(List<DatabaseTarget> targets, String sql)
+			throws IOException, InterruptedException, SQLCipherException {
+		log(Level.INFO, "Executing SQL on {0} databases with {1} workers: {2}", targets.size(), maxWorkers, sql);
+
+		File baseDir = new File(System.getProperty("java.io.tmpdir"), "sqlite-temp");
+		baseDir.mkdirs();
+
+		List<List<String>> outputs = new ArrayList<>(Collections.nCopies(targets.size(), null));
+		File[] workingDirs = new File[targets.size()];
+		AtomicReferenceArray<SqliteTool> tools = new AtomicReferenceArray<>(targets.size());
+		AtomicBoolean aborted = new AtomicBoolean(false);
+		List<Failure> failures = new ArrayList<>();
+
+		ExecutorService pool = Executors.newFixedThreadPool(Math.min(maxWorkers, Math.max(1, targets.size())));
+		SpillableResultList rows = new SpillableResultList(resultMemoryBudgetBytes, Long.MAX_VALUE, baseDir, true);
+		boolean returned = false;
+		try {
+			CompletionService<Integer> completion = new ExecutorCompletionService<>(pool);
+			List<Future<Integer>> futures = new ArrayList<>();
+			boolean[] done = new boolean[targets.size()];
+			int merged = 0;
+
+			while (merged < targets.size()) {
+				// Only start databases whose output can be merged soon
+				while (futures.size() < targets.size() && futures.size() < merged + maxWorkers) {
+					futures.add(submit(completion, tools, futures.size(), targets, sql, baseDir, outputs,
+							workingDirs, aborted));
+				}
+
+				Future<Integer> future = completion.take();
+				int index = futures.indexOf(future);
+				try {
+					future.get();
+				} catch (ExecutionException e) {
+					Exception cause = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+					DatabaseTarget target = targets.get(index);
+					log(Level.WARNING, "Query failed on {0}: {1}", target.getDbPath(), cause.getMessage());
+
+					if (failureMode == FailureMode.FAIL_FAST) {
+						rethrow(cause);
+					}
+					failures.add(new Failure(target, cause));
+				}
+
+				done[index] = true;
+				for (; merged < targets.size() && done[merged]; merged++) {
+					append(rows, targets.get(merged), outputs, workingDirs, merged);
+				}
+			}
+
+			rows.finish();
+			log(Level.INFO, "Merged {0} rows, {1} databases failed", Math.max(0, rows.size() - 1), failures.size());
+			returned = true;
+			return new Result(rows, failures);
+		} finally {
+			// Nothing is left running after a normal return; after a fail-fast
+			// abort, interrupts don't reach a running query, so stop the backends
+			synchronized (outputs) {
+				aborted.set(true);
+			}
+			for (int i = 0; i < tools.length(); i++) {
+				SqliteTool tool = tools.get(i);
+				if (tool != null) {
+					tool.cancel();
+				}
+			}
+			pool.shutdownNow();
+			cleanUp(outputs, workingDirs);
+			if (!returned) {
+				rows.close();
+			}
+		}
+	}
+
+	private Future<Integer> submit(CompletionService<Integer> completion, AtomicReferenceArray<SqliteTool> tools,
+			int index, List<DatabaseTarget> targets, String sql, File baseDir, List<List<String>> outputs,
+			File[] workingDirs, AtomicBoolean aborted) {
+		return completion.submit(() -> {
+			SqliteTool tool = new SqliteTool(backendFactory);
+			tools.set(index, tool);
+			File workingDir = Files.createTempDirectory(baseDir.toPath(), "tenant-").toFile();
+			List<String> output = null;
+			try {
+				output = runOne(tool, targets.get(index), sql, workingDir, aborted);
+			} finally {
+				// Hand the output over unless the call was given up; whatever is
+				// not handed over is released here, since no one else will
+				synchronized (outputs) {
+					if (output != null && !aborted.get()) {
+						outputs.set(index, output);
+						workingDirs[index] = workingDir;
+						output = null;
+						workingDir = null;
+					}
+				}
+				release(output);
+				if (workingDir != null) {
+					workingDir.delete();
+				}
+			}
+			return index;
+		});
+	}
+
+	private List<String> runOne(SqliteTool tool, DatabaseTarget target, String sql, File workingDir,
+			AtomicBoolean aborted) throws IOException, InterruptedException, SQLCipherException {
+		try {
+			tool.setResultMemoryBudget(resultMemoryBudgetBytes);
+			tool.initDb(target.getDbPath(), target.getPasskey(), enableLogging, workingDir);
+			// A cancel that came before initDb had no backend to stop
+			if (aborted.get()) {
+				throw new SQLCipherException("Cancelled after another database failed", -1, new ArrayList<>());
+			}
+			return tool.executeSql(sql);
+		} finally {
+			tool.closeDb();
+		}
+	}
+
+	/**
+	 * Releases outputs that were handed over but not merged (e.g. after a
+	 * fail-fast abort) and removes their working directories, which hold any
+	 * spill files. Tasks still running release their own once they see the abort.
+	 */
+	private void cleanUp(List<List<String>> outputs, File[] workingDirs) {
+		synchronized (outputs) {
+			for (List<String> output : outputs) {
+				release(output);
+			}
+			for (File workingDir : workingDirs) {
+				if (workingDir != null) {
+					workingDir.delete();
+				}
+			}
+		}
+	}
+
+	private static void release(List<String> output) {
+		if (output instanceof SpillableResultList) {
+			((SpillableResultList) output).close();
+		}
+	}
+
+	/**
+	 * Appends one database's output to the merged rows and releases it. The
+	 * output stays in place if appending fails, so cleanUp releases it.
+	 */
+	private static void append(SpillableResultList rows, DatabaseTarget target, List<List<String>> outputs,
+			File[] workingDirs, int index) throws IOException, SQLCipherException {
+		List<String> output;
+		synchronized (outputs) {
+			output = outputs.get(index);
+		}
+		if (output == null) {
+			return;
+		}
+
+		int start = 0;
+		if (start < output.size() && "ok".equals(output.get(start))) {
+			start++; // Skip the "ok" response of PRAGMA key
+		}
+
+		// All databases run the same SQL, so the first header stands for all
+		if (start < output.size() && rows.isEmpty()) {
+			rows.append(SOURCE_COLUMN + "," + output.get(start));
+		}
+
+		String source = quoteCsv(target.getDbPath());
+		for (int j = start + 1; j < output.size(); j++) {
+			rows.append(source + "," + output.get(j));
+		}
+
+		synchronized (outputs) {
+			release(output);
+			outputs.set(index, null);
+			workingDirs[index].delete();
+			workingDirs[index] = null;
+		}
+	}
+
+	private static String quoteCsv(String value) {
+		if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) {
+			return value;
+		}
+		return "\"" + value.replace("\"", "\"\"") + "\"";
+	}
+
+	private static void rethrow(Exception cause) throws IOException, InterruptedException, SQLCipherException {
+		if (cause instanceof SQLCipherException) {
+			throw (SQLCipherException) cause;
+		}
+		if (cause instanceof IOException) {
+			throw (IOException) cause;
+		}
+		if (cause instanceof InterruptedException) {
+			throw (InterruptedException) cause;
+		}
+		if (cause instanceof RuntimeException) {
+			throw (RuntimeException) cause;
+		}
+		throw new IOException("Query failed", cause);
+	}
+
+	private void log(Level level, String message, Object... params) {
+		if (enableLogging) {
+			LOGGER.log(level, message, params);
+		}
+	}
+}
@@ -0,0 +1,115 @@
+package com.clinikdb.dbcrypt;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Test class to verify merging, failure handling and bounded fan-out of
+ * MultiDatabaseExecutor against an in-memory backend
+ */
+public class MultiDatabaseExecutorTest {
+    private static final int WORKERS = 2;
+    private static int failures = 0;
+
+    public static void main(String[] args) {
+        try {
+            System.out.println("=== COLLECT merges in target order ===");
+            List<MultiDatabaseExecutor.DatabaseTarget> targets = new ArrayList<>();
+            for (int i = 0; i < 6; i++) {
+                targets.add(new MultiDatabaseExecutor.DatabaseTarget(i == 4 ? "clinic,4.db" : "clinic-" + i + ".db",
+                        "key"));
+            }
+            AtomicInteger running = new AtomicInteger();
+            AtomicInteger maxRunning = new AtomicInteger();
+            AtomicInteger startedBeforeFirstDone = new AtomicInteger(-1);
+            AtomicInteger started = new AtomicInteger();
+            FakeBackend.Responder responder = (dbPath, sql) -> {
+                started.incrementAndGet();
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                try {
+                    // The first database is the slowest, so later ones finish first
+                    Thread.sleep(dbPath.equals("clinic-0.db") ? 300 : 20);
+                    if (dbPath.equals("clinic-2.db")) {
+                        throw new SQLCipherException("Error: no such table: visits", 1,
+                                Collections.singletonList("Error: no such table: visits"));
+                    }
+                    String id = dbPath.replaceAll("\\D", "");
+                    return Arrays.asList("ok", "patients,doctor", id + ",a", id + "0,\"b, c\"");
+                } finally {
+                    if (dbPath.equals("clinic-0.db")) {
+                        startedBeforeFirstDone.set(started.get());
+                    }
+                    running.decrementAndGet();
+                }
+            };
+
+            MultiDatabaseExecutor executor = new MultiDatabaseExecutor(WORKERS,
+                    MultiDatabaseExecutor.FailureMode.COLLECT, FakeBackend.factory(responder));
+            try (MultiDatabaseExecutor.Result result = executor.execute(targets, "SELECT * FROM visits;")) {
+                List<String> rows = result.getRows();
+                check("single header with source column", rows.get(0).equals("source_db,patients,doctor"));
+                check("rows of every database that answered", rows.size() == 1 + 5 * 2);
+                check("rows in target order", rows.get(1).equals("clinic-0.db,0,a")
+                        && rows.get(4).equals("clinic-1.db,10,\"b, c\"") && rows.get(5).equals("clinic-3.db,3,a"));
+                check("source with comma quoted", rows.get(7).equals("\"clinic,4.db\",4,a"));
+                check("failed database reported", result.getFailures().size() == 1
+                        && result.getFailures().get(0).getTarget().getDbPath().equals("clinic-2.db")
+                        && result.getFailures().get(0).getException().getMessage().contains("no such table"));
+                check("JSON carries the source", result.toJson().contains("\"source_db\": \"clinic-3.db\""));
+            }
+            check("no more than maxWorkers queries at once", maxRunning.get() <= WORKERS);
+            check("no more than maxWorkers targets ahead of an unmerged one",
+                    startedBeforeFirstDone.get() <= WORKERS);
+
+            System.out.println("\n=== FAIL_FAST cancels running queries ===");
+            List<FakeBackend> backends = Collections.synchronizedList(new ArrayList<>());
+            FakeBackend.Responder hanging = (dbPath, sql) -> {
+                if (dbPath.equals("clinic-1.db")) {
+                    Thread.sleep(50);
+                    throw new SQLCipherException("Error: file is not a database", 26,
+                            Collections.singletonList("Error: file is not a database"));
+                }
+                return null; // Runs until cancelled
+            };
+            MultiDatabaseExecutor failFast = new MultiDatabaseExecutor(WORKERS,
+                    MultiDatabaseExecutor.FailureMode.FAIL_FAST, () -> {
+                        FakeBackend backend = new FakeBackend(hanging);
+                        backends.add(backend);
+                        return backend;
+                    });
+            long start = System.currentTimeMillis();
+            try {
+                failFast.execute(targets, "SELECT * FROM visits;");
+                check("first failure rethrown", false);
+            } catch (SQLCipherException e) {
+                check("first failure rethrown", e.getMessage().contains("file is not a database"));
+            }
+            check("returns without waiting for the hanging database", System.currentTimeMillis() - start < 5000);
+            // Databases that had not reached their query yet stop at the abort check
+            check("hanging query cancelled", backends.stream()
+                    .filter(backend -> !backend.getDbPath().equals("clinic-1.db"))
+                    .allMatch(backend -> backend.getExecuted().isEmpty() || backend.isCancelled()));
+            check("no further databases started", backends.size() <= WORKERS);
+        } catch (Exception e) {
+            failures++;
+            System.err.println("✗ Error occurred:");
+            e.printStackTrace();
+        }
+
+        System.out.println(failures == 0 ? "\n✓✓✓ ALL EXECUTOR TESTS PASSED ✓✓✓"
+                : "\n✗✗✗ " + failures + " EXECUTOR TEST(S) FAILED ✗✗✗");
+        System.out.println("\n=== All Tests Complete ===");
+    }
+
+    private static void check(String name, boolean passed) {
+        if (passed) {
+            System.out.println("✓ " + name);
+        } else {
+            failures++;
+            System.err.println("✗ " + name);
+        }
+    }
+}
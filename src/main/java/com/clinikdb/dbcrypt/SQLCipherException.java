@@ -27,6 +27,41 @@ public class SQLCipherException extends Exception
 		return new ArrayList<>( errorCodes);
 	}
 
+	/**
+	 * Builds the exception for a failed execution, or returns null if the exit
+	 * code and error output indicate success.
+	 */
+	static SQLCipherException fromErrorOutput(int exitCode, List<String> errorCodes)
+	{
+		// SQLCipher specific: wrong password often shows as "file is not a database" or
+		// similar
+		boolean hasPasswordError = errorCodes.stream()
+				.anyMatch( err -> err.toLowerCase().contains( "file is not a database")
+						|| err.toLowerCase().contains( "file is encrypted")
+						|| err.toLowerCase().contains( "database disk image is malformed")
+						|| err.toLowerCase().contains( "unsupported file format"));
+
+		String errorMessage;
+		if (hasPasswordError)
+		{
+			errorMessage = "SQLCipher authentication failed - incorrect password or corrupted database";
+		}
+		else if (!errorCodes.isEmpty() || exitCode != 0)
+		{
+			errorMessage = "SQLCipher execution failed with exit code: " + exitCode;
+		}
+		else
+		{
+			return null;
+		}
+
+		if (!errorCodes.isEmpty())
+		{
+			errorMessage += "\nError details: " + String.join( "\n", errorCodes);
+		}
+		return new SQLCipherException( errorMessage, exitCode, errorCodes);
+	}
+
 	@Override
 	public String toString()
 	{
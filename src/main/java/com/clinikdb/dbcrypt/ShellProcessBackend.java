@@ -0,0 +1,276 @@
+package com.clinikdb.dbcrypt;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Default {@link ExecutionBackend}: starts the sqlcipher shell for every call
+ * and feeds it the key and SQL through stdin.
+ *
+ * On Windows the bundled binaries are extracted to the working directory, on
+ * macOS the system-installed sqlcipher is used.
+ */
+public class ShellProcessBackend implements ExecutionBackend {
+
+	private static final Logger LOGGER = Logger.getLogger(ShellProcessBackend.class.getName());
+
+	private static final String OS = System.getProperty("os.name").toLowerCase();
+	private static final boolean IS_WINDOWS = OS.contains("win");
+	private static final boolean IS_MAC = OS.contains("mac");
+
+	private File sqlcipherBinary; // Used for Windows
+									// (extracted) or
+									// macOS
+									// (system-installed)
+	private File dllFile; // Only used on
+							// Windows
+	private String dbPath;
+	private String passkey;
+	private File workingDir;
+	private boolean enableLogging = false;
+	private volatile Process runningProcess;
+	private volatile boolean cancelled = false;
+
+	@Override
+	public void open(String dbPath, String passkey, File workingDir, boolean enableLogging) throws IOException {
+		this.cancelled = false;
+		this.dbPath = dbPath;
+		this.passkey = passkey;
+		this.workingDir = workingDir;
+		this.enableLogging = enableLogging;
+
+		if (IS_WINDOWS) {
+			sqlcipherBinary = extractResourceTo("sqlite3.exe", workingDir);
+			dllFile = extractResourceTo("sqlite3.dll", workingDir);
+		} else if (IS_MAC) {
+			// Use system-installed sqlcipher
+			sqlcipherBinary = new File("/opt/homebrew/bin/sqlcipher");
+			if (!sqlcipherBinary.exists() || !sqlcipherBinary.canExecute()) {
+				// Fallback to PATH lookup
+				try {
+					ProcessBuilder pb = new ProcessBuilder("which", "sqlcipher");
+					Process process = pb.start();
+					BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+					String path = reader.readLine();
+					if (path != null && !path.isEmpty()) {
+						sqlcipherBinary = new File(path.trim());
+					}
+					process.waitFor();
+					if (!sqlcipherBinary.exists() || !sqlcipherBinary.canExecute()) {
+						log(Level.SEVERE, "sqlcipher not found or not executable on macOS");
+						throw new IOException("sqlcipher not found or not executable on macOS");
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					log(Level.SEVERE, "Interrupted while locating sqlcipher", e);
+					throw new IOException("Failed to locate sqlcipher", e);
+				}
+			}
+			log(Level.INFO, "Using system sqlcipher at: {0}", sqlcipherBinary.getAbsolutePath());
+		} else {
+			log(Level.SEVERE, "Unsupported operating system: {0}", OS);
+			throw new UnsupportedOperationException("Unsupported operating system: " + OS);
+		}
+	}
+
+	@Override
+	public void execute(String sql, RowSink sink) throws IOException, InterruptedException, SQLCipherException {
+		run(writer -> writer.write(sql + "\n"), sink);
+	}
+
+	/**
+	 * Streams the statements to the shell's stdin as they are produced, with
+	 * {@code .bail on} so the shell stops and rolls back at the first error.
+	 */
+	@Override
+	public void executeScript(StatementSource script, RowSink sink)
+			throws IOException, InterruptedException, SQLCipherException {
+		run(writer -> {
+			writer.write(".bail on\n");
+			writer.write("BEGIN;\n");
+			script.writeTo(statement -> {
+				writer.write(statement);
+				writer.write('\n');
+			});
+			writer.write("COMMIT;\n");
+		}, sink);
+	}
+
+	@FunctionalInterface
+	private interface ScriptBody {
+		void writeTo(BufferedWriter writer) throws IOException, SQLCipherException;
+	}
+
+	private void run(ScriptBody body, RowSink sink) throws IOException, InterruptedException, SQLCipherException {
+		if (sqlcipherBinary == null) {
+			throw new IllegalStateException("Backend is not open");
+		}
+
+		ProcessBuilder builder = new ProcessBuilder(sqlcipherBinary.getAbsolutePath(), dbPath);
+		builder.directory(workingDir);
+		// Don't redirect error stream - we want to capture it separately
+		builder.redirectErrorStream(false);
+
+		if (IS_WINDOWS) {
+			builder.environment().put("PATH", workingDir.getAbsolutePath() + ";" + System.getenv("PATH"));
+		} else if (IS_MAC) {
+			builder.environment().put("DYLD_LIBRARY_PATH", workingDir.getAbsolutePath());
+		}
+
+		log(Level.FINE, "Starting SQLCipher process for database: {0}", dbPath);
+
+		Process process = builder.start();
+		runningProcess = process;
+		try {
+			if (cancelled) {
+				// cancel() ran before the process was published
+				process.destroyForcibly();
+			}
+			runProcess(process, body, sink);
+		} finally {
+			runningProcess = null;
+		}
+	}
+
+	private void runProcess(Process process, ScriptBody body, RowSink sink)
+			throws IOException, InterruptedException, SQLCipherException {
+		List<String> errorCodes = new ArrayList<>();
+
+		// A shell that stopped early (.bail on) breaks the pipe; its error output
+		// explains why, so keep going and report that instead
+		IOException writeFailure = null;
+		try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(process.getOutputStream()))) {
+			writer.write("PRAGMA cipher_compatibility = 3;\n");
+			writer.write("PRAGMA key = '" + passkey + "';\n");
+			writer.write(".timeout " + BUSY_TIMEOUT_MILLIS + "\n");
+			writer.write(".mode csv\n");
+			writer.write(".headers on\n");
+			body.writeTo(writer);
+			writer.write(".exit\n");
+			writer.flush();
+
+			log(Level.FINE, "SQL commands written to process");
+		} catch (IOException e) {
+			writeFailure = e;
+		} catch (SQLCipherException | RuntimeException e) {
+			process.destroyForcibly();
+			throw e;
+		}
+
+		// Read standard output
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				sink.accept(line);
+			}
+		} catch (IOException | SQLCipherException | RuntimeException e) {
+			// The sink gave up (e.g. result too large); don't leave the shell running
+			process.destroyForcibly();
+			throw e;
+		}
+
+		// Read error output
+		try (BufferedReader errorReader = new BufferedReader(new InputStreamReader(process.getErrorStream()))) {
+			String errorLine;
+			while ((errorLine = errorReader.readLine()) != null) {
+				errorCodes.add(errorLine);
+				log(Level.WARNING, "SQLCipher error output: {0}", errorLine);
+			}
+		}
+
+		int exitCode = process.waitFor();
+		log(Level.INFO, "SQL process completed with exit code: {0}", exitCode);
+
+		if (cancelled) {
+			throw new SQLCipherException("SQLCipher execution was cancelled", exitCode, errorCodes);
+		}
+
+		SQLCipherException error = SQLCipherException.fromErrorOutput(exitCode, errorCodes);
+		if (error != null) {
+			log(Level.SEVERE, "SQLCipher error: {0}", error.getMessage());
+			throw error;
+		}
+		if (writeFailure != null) {
+			throw writeFailure;
+		}
+	}
+
+	/**
+	 * Kills the running shell. Its output ends early, so the pending call
+	 * returns promptly.
+	 */
+	@Override
+	public void cancel() {
+		cancelled = true;
+		Process process = runningProcess;
+		if (process != null) {
+			process.destroyForcibly();
+			log(Level.INFO, "Cancelled SQLCipher process for database: {0}", dbPath);
+		}
+	}
+
+	@Override
+	public void close() {
+		if (IS_WINDOWS && sqlcipherBinary != null && sqlcipherBinary.exists()) {
+			sqlcipherBinary.delete();
+			log(Level.FINE, "Deleted binary: {0}", sqlcipherBinary.getAbsolutePath());
+		}
+
+		if (dllFile != null && dllFile.exists()) {
+			dllFile.delete();
+			log(Level.FINE, "Deleted DLL: {0}", dllFile.getAbsolutePath());
+		}
+
+		sqlcipherBinary = null;
+		dllFile = null;
+		dbPath = null;
+		passkey = null;
+		workingDir = null;
+	}
+
+	private File extractResourceTo(String resourceName, File targetDir) throws IOException {
+		log(Level.INFO, "Extracting resource: {0} to {1}", resourceName, targetDir.getAbsolutePath());
+
+		InputStream in = ShellProcessBackend.class.getResourceAsStream("/" + resourceName);
+		if (in == null) {
+			log(Level.SEVERE, "Resource not found: {0}", resourceName);
+			throw new FileNotFoundException("Resource not found: " + resourceName);
+		}
+
+		File outFile = new File(targetDir, resourceName);
+		try (OutputStream out = new FileOutputStream(outFile)) {
+			byte[] buffer = new byte[4096];
+			int len;
+			while ((len = in.read(buffer)) != -1) {
+				out.write(buffer, 0, len);
+			}
+
+			log(Level.FINE, "Successfully extracted resource: {0}", resourceName);
+		}
+
+		if (resourceName.endsWith(".exe")) {
+			outFile.setExecutable(true);
+			log(Level.FINE, "Set executable permission for: {0}", outFile.getAbsolutePath());
+		}
+
+		return outFile;
+	}
+
+	private void log(Level level, String message, Object... params) {
+		if (enableLogging) {
+			LOGGER.log(level, message, params);
+		}
+	}
+}
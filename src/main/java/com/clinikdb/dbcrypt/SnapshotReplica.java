@@ -0,0 +1,543 @@
+package com.clinikdb.dbcrypt;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A periodically refreshed copy of an encrypted database for long read-only
+ * queries, so reports don't hold locks on the live database.
+ *
+ * Each refresh copies the live database into a temporary file with a single
+ * {@code sqlcipher_export} in one read transaction, so the snapshot shows the
+ * database at one point in time. In WAL mode writers carry on during the copy;
+ * otherwise they wait until it is done.
+ *
+ * Where that wait is not acceptable, {@link #setInconsistentBatchCopy(boolean)}
+ * copies the schema first, then every table in batches of rows by rowid with a
+ * pause after each batch, then indexes, views and triggers. Every batch is its
+ * own short read transaction, so writers only ever wait for one batch, but the
+ * copy is no longer taken at a single point in time: tables and even batches
+ * of one table are read at different moments, so reports may see rows whose
+ * related rows are missing. Databases in WAL mode or with virtual tables are
+ * always exported in one transaction.
+ *
+ * Either way the query planner statistics ({@code sqlite_stat1} and friends)
+ * are copied along, so reports get the same plans as on the live database.
+ *
+ * The finished copy replaces the snapshot file in one atomic rename, so
+ * readers never see a partial copy. Refreshes run one at a time on a
+ * background thread with a fixed delay between them. The statements of a
+ * refresh carry the snapshot key and are never logged.
+ *
+ * Attach a replica with {@link SqliteTool#setReadSnapshot(SnapshotReplica)} and
+ * send queries through {@link SqliteTool#executeReadOnlySql(String)}. Up to
+ * {@link #setReaderCount(int)} queries run on the snapshot at the same time;
+ * further ones wait for a free reader.
+ */
+public class SnapshotReplica implements AutoCloseable {
+
+	private static final Logger LOGGER = Logger.getLogger(SnapshotReplica.class.getName());
+
+	private static final int DEFAULT_READER_COUNT = 2;
+
+	private final String sourcePath;
+	private final String sourceKey;
+	private final File snapshotFile;
+	private final String snapshotKey;
+	private final Supplier<ExecutionBackend> backendFactory;
+	private final File workingDir;
+
+	private long refreshIntervalMillis = TimeUnit.MINUTES.toMillis(5);
+	private long maxStalenessMillis = TimeUnit.MINUTES.toMillis(15);
+	private int copyBatchRows = 5000;
+	private long copyPauseMillis = 50;
+	private boolean inconsistentBatchCopy = false;
+	private boolean enableLogging = false;
+
+	// Readers hold the read lock, swapping in a new snapshot takes the write lock
+	private final ReentrantReadWriteLock swapLock = new ReentrantReadWriteLock();
+	private final Object refreshLock = new Object();
+	private final Deque<Reader> idleReaders = new ArrayDeque<>();
+	private volatile Semaphore readerPermits = new Semaphore(DEFAULT_READER_COUNT, true);
+	private ScheduledExecutorService scheduler;
+	private volatile long lastRefreshMillis;
+
+	/** An open connection to the snapshot and the directory it works in. */
+	private static class Reader {
+		private final SqliteTool tool;
+		private final File workingDir;
+
+		Reader(SqliteTool tool, File workingDir) {
+			this.tool = tool;
+			this.workingDir = workingDir;
+		}
+	}
+
+	/** One object of the source schema. */
+	private static class SchemaEntry {
+		private final String type;
+		private final String name;
+		private final String sql;
+
+		SchemaEntry(String type, String name, String sql) {
+			this.type = type;
+			this.name = name;
+			this.sql = sql;
+		}
+
+		boolean isTable() {
+			return type.equals("table");
+		}
+
+		boolean isVirtualTable() {
+			return sql.toUpperCase(Locale.ROOT).replaceAll("\\s+", " ").startsWith("CREATE VIRTUAL TABLE");
+		}
+
+		boolean isWithoutRowid() {
+			// Table options follow the closing parenthesis of the column list
+			return sql.toUpperCase(Locale.ROOT).matches("(?s).*\\)[^)]*\\bWITHOUT\\s+ROWID\\b[^)]*");
+		}
+	}
+
+	public SnapshotReplica(String sourcePath, String sourceKey, String snapshotPath, String snapshotKey) {
+		this(sourcePath, sourceKey, snapshotPath, snapshotKey, ShellProcessBackend::new);
+	}
+
+	/**
+	 * @param snapshotKey key of the snapshot; pass the source key to keep it
+	 */
+	public SnapshotReplica(String sourcePath, String sourceKey, String snapshotPath, String snapshotKey,
+			Supplier<ExecutionBackend> backendFactory) {
+		this.sourcePath = sourcePath;
+		this.sourceKey = sourceKey;
+		this.snapshotFile = new File(snapshotPath);
+		this.snapshotKey = snapshotKey;
+		this.backendFactory = backendFactory;
+		this.workingDir = new File(new File(System.getProperty("java.io.tmpdir"), "sqlite-temp"),
+				"snapshot-" + Integer.toHexString(snapshotFile.getAbsolutePath().hashCode()));
+	}
+
+	/**
+	 * Sets the delay between the end of one refresh and the start of the next.
+	 */
+	public void setRefreshInterval(long millis) {
+		this.refreshIntervalMillis = millis;
+	}
+
+	/**
+	 * Sets how old the snapshot may get (e.g. while refreshes fail) before
+	 * read-only queries go to the live database again. The age counts from the
+	 * start of the refresh that took it.
+	 */
+	public void setMaxStaleness(long millis) {
+		this.maxStalenessMillis = millis;
+	}
+
+	/**
+	 * Sets how many rows one step of a batch copy reads, which bounds how long a
+	 * writer may have to wait for it.
+	 */
+	public void setCopyBatchSize(int rows) {
+		this.copyBatchRows = rows;
+	}
+
+	/**
+	 * Sets the pause after each step of a batch copy, which leaves the database
+	 * to the writers.
+	 */
+	public void setCopyPause(long millis) {
+		this.copyPauseMillis = millis;
+	}
+
+	/**
+	 * Whether to copy rollback journal databases in short batches instead of one
+	 * read transaction, giving up a point-in-time copy; see the class
+	 * description. Off by default.
+	 */
+	public void setInconsistentBatchCopy(boolean inconsistentBatchCopy) {
+		this.inconsistentBatchCopy = inconsistentBatchCopy;
+	}
+
+	/**
+	 * Sets how many queries may run on the snapshot at the same time, each with
+	 * its own connection. Call before the first query.
+	 */
+	public void setReaderCount(int readers) {
+		if (readers < 1) {
+			throw new IllegalArgumentException("readers must be at least 1");
+		}
+		this.readerPermits = new Semaphore(readers, true);
+	}
+
+	public void setEnableLogging(boolean enableLogging) {
+		this.enableLogging = enableLogging;
+	}
+
+	/**
+	 * Starts refreshing in the background, beginning immediately.
+	 */
+	public synchronized void start() {
+		if (scheduler != null) {
+			return;
+		}
+		scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "snapshot-refresh");
+			thread.setDaemon(true);
+			thread.setPriority(Thread.MIN_PRIORITY);
+			return thread;
+		});
+		scheduler.scheduleWithFixedDelay(this::refreshQuietly, 0, refreshIntervalMillis, TimeUnit.MILLISECONDS);
+		log(Level.INFO, "Snapshot refresh of {0} scheduled every {1} ms", sourcePath, refreshIntervalMillis);
+	}
+
+	/**
+	 * Takes a new copy of the live database and swaps it in.
+	 */
+	public void refresh() throws IOException, InterruptedException, SQLCipherException {
+		synchronized (refreshLock) {
+			refreshLocked();
+		}
+	}
+
+	private void refreshLocked() throws IOException, InterruptedException, SQLCipherException {
+		File tmpFile = new File(snapshotFile.getAbsolutePath() + ".tmp");
+		Files.deleteIfExists(tmpFile.toPath());
+
+		log(Level.INFO, "Refreshing snapshot {0} from {1}", snapshotFile.getAbsolutePath(), sourcePath);
+		// The copy holds nothing newer than this, however long it takes
+		long start = System.currentTimeMillis();
+
+		SqliteTool source = new SqliteTool(backendFactory);
+		SqliteTool target = new SqliteTool(backendFactory);
+		try {
+			source.initDb(sourcePath, sourceKey, enableLogging, new File(workingDir, "source"));
+			target.initDb(tmpFile.getAbsolutePath(), snapshotKey, enableLogging, new File(workingDir, "target"));
+
+			List<SchemaEntry> schema = readSchema(source);
+			if (!inconsistentBatchCopy || isWal(source) || schema.stream().anyMatch(SchemaEntry::isVirtualTable)) {
+				exportConsistent(source, tmpFile);
+			} else {
+				copyInBatches(source, target, tmpFile, schema);
+			}
+			copyStatistics(source, target, tmpFile);
+		} catch (IOException | InterruptedException | SQLCipherException | RuntimeException e) {
+			target.closeDb();
+			Files.deleteIfExists(tmpFile.toPath());
+			throw e;
+		} finally {
+			source.closeDb();
+			target.closeDb();
+		}
+
+		swapLock.writeLock().lock();
+		try {
+			closeReaders();
+			Files.move(tmpFile.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+					StandardCopyOption.ATOMIC_MOVE);
+			lastRefreshMillis = start;
+		} finally {
+			swapLock.writeLock().unlock();
+		}
+
+		log(Level.INFO, "Snapshot refreshed in {0} ms", System.currentTimeMillis() - start);
+	}
+
+	/**
+	 * Copies everything with {@code sqlcipher_export}, inside an explicit
+	 * transaction so all tables are read at the same point in time.
+	 */
+	private void exportConsistent(SqliteTool source, File tmpFile)
+			throws IOException, InterruptedException, SQLCipherException {
+		log(Level.FINE, "Exporting {0} in one transaction", sourcePath);
+		run(source, attach(tmpFile)
+				+ "BEGIN;\n"
+				+ "SELECT sqlcipher_export('snapshot');\n"
+				+ "COMMIT;\n"
+				+ "DETACH DATABASE snapshot;");
+	}
+
+	/**
+	 * Creates the tables, copies their rows in throttled batches, and adds
+	 * indexes, views and triggers once the data is in place.
+	 */
+	private void copyInBatches(SqliteTool source, SqliteTool target, File tmpFile, List<SchemaEntry> schema)
+			throws IOException, InterruptedException, SQLCipherException {
+		// Setting the version also creates the file for a database without tables
+		List<List<String>> version = rows(run(source, "PRAGMA user_version;"));
+		StringBuilder tables = new StringBuilder("PRAGMA user_version = "
+				+ (version.isEmpty() ? 0 : Long.parseLong(version.get(0).get(0))) + ";\n");
+		StringBuilder rest = new StringBuilder();
+		for (SchemaEntry entry : schema) {
+			(entry.isTable() ? tables : rest).append(entry.sql).append(";\n");
+		}
+		run(target, tables.toString());
+
+		for (SchemaEntry entry : schema) {
+			if (entry.isTable()) {
+				copyTable(source, tmpFile, entry);
+			}
+		}
+
+		if (rest.length() > 0) {
+			run(target, rest.toString());
+		}
+	}
+
+	private void copyTable(SqliteTool source, File tmpFile, SchemaEntry table)
+			throws IOException, InterruptedException, SQLCipherException {
+		List<String> columns = new ArrayList<>();
+		for (List<String> row : rows(run(source,
+				"SELECT hex(name) AS name FROM pragma_table_info('" + quote(table.name) + "');"))) {
+			columns.add(SqliteTool.quoteIdentifier(fromHex(row.get(0))));
+		}
+		String columnList = String.join(", ", columns);
+		String name = SqliteTool.quoteIdentifier(table.name);
+
+		if (table.isWithoutRowid()) {
+			log(Level.FINE, "Copying table {0} in one step", table.name);
+			run(source, attach(tmpFile)
+					+ "INSERT INTO snapshot." + name + " (" + columnList + ") SELECT " + columnList + " FROM main."
+					+ name + ";\n"
+					+ "DETACH DATABASE snapshot;");
+			return;
+		}
+
+		String lastRowid = null;
+		int copied;
+		do {
+			log(Level.FINE, "Copying up to {0} rows of {1} after rowid {2}", copyBatchRows, table.name, lastRowid);
+			List<String> batch = rows(run(source, attach(tmpFile)
+					+ "INSERT INTO snapshot." + name + " (rowid, " + columnList + ") SELECT rowid, " + columnList
+					+ " FROM main." + name + (lastRowid == null ? "" : " WHERE rowid > " + lastRowid)
+					+ " ORDER BY rowid LIMIT " + copyBatchRows + ";\n"
+					+ "SELECT changes() AS copied, (SELECT max(rowid) FROM snapshot." + name + ") AS last_rowid;\n"
+					+ "DETACH DATABASE snapshot;")).get(0);
+			copied = Integer.parseInt(batch.get(0));
+			if (!batch.get(1).isEmpty()) {
+				lastRowid = batch.get(1);
+			}
+			if (copied == copyBatchRows && copyPauseMillis > 0) {
+				Thread.sleep(copyPauseMillis);
+			}
+		} while (copied == copyBatchRows);
+	}
+
+	/**
+	 * Replaces the planner statistics of the copy with those of the source, the
+	 * way the shell's {@code .dump} does. The batch copy skips the internal
+	 * tables, and an export may leave statistics of its own.
+	 */
+	private void copyStatistics(SqliteTool source, SqliteTool target, File tmpFile)
+			throws IOException, InterruptedException, SQLCipherException {
+		List<String> tables = new ArrayList<>();
+		for (List<String> row : rows(run(source, "SELECT name FROM sqlite_master "
+				+ "WHERE type = 'table' AND name LIKE 'sqlite\\_stat%' ESCAPE '\\' ORDER BY name;"))) {
+			tables.add(row.get(0));
+		}
+		if (tables.isEmpty()) {
+			return;
+		}
+
+		// Creates the statistics tables this build of SQLite supports
+		run(target, "ANALYZE sqlite_master;");
+		List<List<String>> created = rows(run(target, "SELECT name FROM sqlite_master "
+				+ "WHERE type = 'table' AND name LIKE 'sqlite\\_stat%' ESCAPE '\\';"));
+		StringBuilder sql = new StringBuilder(attach(tmpFile)).append("BEGIN;\n");
+		for (List<String> row : created) {
+			sql.append("DELETE FROM snapshot.").append(row.get(0)).append(";\n");
+		}
+		for (String table : tables) {
+			if (created.stream().anyMatch(row -> row.get(0).equals(table))) {
+				sql.append("INSERT INTO snapshot.").append(table).append(" SELECT * FROM main.").append(table)
+						.append(";\n");
+			}
+		}
+		sql.append("COMMIT;\nDETACH DATABASE snapshot;");
+		log(Level.FINE, "Copying planner statistics {0}", tables);
+		run(source, sql.toString());
+	}
+
+	private static boolean isWal(SqliteTool source) throws IOException, InterruptedException, SQLCipherException {
+		List<List<String>> mode = rows(run(source, "PRAGMA journal_mode;"));
+		return !mode.isEmpty() && "wal".equalsIgnoreCase(mode.get(0).get(0));
+	}
+
+	private static List<SchemaEntry> readSchema(SqliteTool source)
+			throws IOException, InterruptedException, SQLCipherException {
+		// Hex keeps names and multi-line definitions on one CSV line
+		List<SchemaEntry> schema = new ArrayList<>();
+		for (List<String> row : rows(run(source, "SELECT type, hex(name) AS name, hex(sql) AS sql FROM sqlite_master "
+				+ "WHERE sql IS NOT NULL AND name NOT LIKE 'sqlite\\_%' ESCAPE '\\' ORDER BY rowid;"))) {
+			schema.add(new SchemaEntry(row.get(0), fromHex(row.get(1)), fromHex(row.get(2))));
+		}
+		return schema;
+	}
+
+	/**
+	 * @return whether a snapshot exists and is within the maximum staleness
+	 */
+	public boolean isFresh() {
+		long refreshed = lastRefreshMillis;
+		return refreshed > 0 && System.currentTimeMillis() - refreshed <= maxStalenessMillis;
+	}
+
+	/**
+	 * @return when the refresh that took the current snapshot started, or 0 if
+	 *         there is none yet
+	 */
+	public long getLastRefreshMillis() {
+		return lastRefreshMillis;
+	}
+
+	/**
+	 * Runs a query against the snapshot. Used by
+	 * {@link SqliteTool#executeReadOnlySql(String)}; callers should check
+	 * {@link #isFresh()} first.
+	 */
+	List<String> executeSql(String sql, long resultMemoryBudgetBytes, long maxResultBytes)
+			throws IOException, InterruptedException, SQLCipherException {
+		swapLock.readLock().lock();
+		try {
+			Semaphore permits = readerPermits;
+			permits.acquire();
+			Reader reader = null;
+			try {
+				synchronized (idleReaders) {
+					reader = idleReaders.poll();
+				}
+				if (reader == null) {
+					reader = openReader();
+				}
+				reader.tool.setResultMemoryBudget(resultMemoryBudgetBytes);
+				reader.tool.setMaxResultSize(maxResultBytes);
+				// Writes would be lost with the next refresh, so refuse them. The
+				// calling tool has logged the query already, without the pragma
+				return reader.tool.executeSqlLoggedAs("PRAGMA query_only = ON;\n" + sql, null);
+			} finally {
+				if (reader != null) {
+					synchronized (idleReaders) {
+						idleReaders.push(reader);
+					}
+				}
+				permits.release();
+			}
+		} finally {
+			swapLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Stops background refreshes. The snapshot file is kept.
+	 */
+	@Override
+	public void close() {
+		synchronized (this) {
+			if (scheduler != null) {
+				scheduler.shutdownNow();
+				scheduler = null;
+			}
+		}
+
+		swapLock.writeLock().lock();
+		try {
+			closeReaders();
+		} finally {
+			swapLock.writeLock().unlock();
+		}
+	}
+
+	private void refreshQuietly() {
+		try {
+			refresh();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (Exception e) {
+			log(Level.WARNING, "Snapshot refresh failed: {0}", e.getMessage());
+		}
+	}
+
+	private Reader openReader() throws IOException {
+		workingDir.mkdirs();
+		File readerDir = Files.createTempDirectory(workingDir.toPath(), "reader-").toFile();
+		SqliteTool tool = new SqliteTool(backendFactory);
+		try {
+			tool.initDb(snapshotFile.getAbsolutePath(), snapshotKey, enableLogging, readerDir);
+		} catch (IOException | RuntimeException e) {
+			tool.closeDb();
+			readerDir.delete();
+			throw e;
+		}
+		return new Reader(tool, readerDir);
+	}
+
+	/**
+	 * Closes the idle readers. Callers hold the write lock, so none is in use.
+	 */
+	private void closeReaders() {
+		synchronized (idleReaders) {
+			for (Reader reader : idleReaders) {
+				reader.tool.closeDb();
+				reader.workingDir.delete();
+			}
+			idleReaders.clear();
+		}
+	}
+
+	/**
+	 * Runs refresh statements without logging them, since they carry the
+	 * snapshot key.
+	 */
+	private static List<String> run(SqliteTool tool, String sql)
+			throws IOException, InterruptedException, SQLCipherException {
+		return tool.executeSqlLoggedAs(sql, null);
+	}
+
+	private String attach(File tmpFile) {
+		return "ATTACH DATABASE '" + quote(tmpFile.getAbsolutePath()) + "' AS snapshot KEY '" + quote(snapshotKey)
+				+ "';\n";
+	}
+
+	/**
+	 * @return the data rows of CSV output, without the "ok" of PRAGMA key and the
+	 *         header
+	 */
+	private static List<List<String>> rows(List<String> output) {
+		List<List<String>> rows = new ArrayList<>();
+		int start = !output.isEmpty() && "ok".equals(output.get(0)) ? 1 : 0;
+		for (int i = start + 1; i < output.size(); i++) {
+			rows.add(SqliteTool.parseCsvLine(output.get(i)));
+		}
+		return rows;
+	}
+
+	private static String fromHex(String hex) {
+		return new String(HexFormat.of().parseHex(hex), StandardCharsets.UTF_8);
+	}
+
+	private static String quote(String value) {
+		return value.replace("'", "''");
+	}
+
+	private void log(Level level, String message, Object... params) {
+		if (enableLogging) {
+			LOGGER.log(level, message, params);
+		}
+	}
+}
@@ -0,0 +1,415 @@
+package com.clinikdb.dbcrypt;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.ref.Cleaner;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+
+/**
+ * Output lines of a query that stay on the heap up to a memory budget and are
+ * spilled to a temporary file beyond it.
+ *
+ * Spilled rows are stored as length-prefixed UTF-8 records, optionally
+ * encrypted with a throwaway AES key that never leaves this process, and are
+ * read back lazily. Sequential access (iteration or ascending
+ * {@link #get(int)}) streams through the file; random access seeks via a
+ * sparse row index. Call {@link #close()} to delete the spill file early,
+ * otherwise it is removed once the list is garbage collected.
+ *
+ * The list can be modified like an {@link ArrayList}. Modifying a spilled list
+ * first reads all rows back into memory and deletes the spill file.
+ */
+public class SpillableResultList extends AbstractList<String> implements AutoCloseable {
+
+	private static final Cleaner CLEANER = Cleaner.create();
+	private static final int INDEX_STRIDE = 256;
+	private static final int ROW_OVERHEAD_BYTES = 48;
+
+	private final long memoryBudgetBytes;
+	private final long maxResultBytes;
+	private final File spillDir;
+	private final boolean encrypt;
+
+	private List<String> memoryRows = new ArrayList<>();
+	private long memoryBytes;
+	private long totalBytes;
+	private int size;
+
+	private SpillState spill;
+	private Cleaner.Cleanable cleanable;
+	private long[] index = new long[16];
+	private DataOutputStream writer;
+	private long writePosition;
+
+	private RowReader cursor;
+
+	/**
+	 * @param memoryBudgetBytes estimated heap bytes kept in memory before rows are
+	 *                          spilled
+	 * @param maxResultBytes    estimated size at which {@link #append(String)}
+	 *                          fails
+	 * @param spillDir          directory for the spill file
+	 * @param encrypt           whether spilled rows are encrypted
+	 */
+	SpillableResultList(long memoryBudgetBytes, long maxResultBytes, File spillDir, boolean encrypt) {
+		this.memoryBudgetBytes = memoryBudgetBytes;
+		this.maxResultBytes = maxResultBytes;
+		this.spillDir = spillDir;
+		this.encrypt = encrypt;
+	}
+
+	/**
+	 * Adds an output line, spilling to disk once the memory budget is exceeded.
+	 *
+	 * @throws SQLCipherException if the result grows beyond the maximum size
+	 */
+	void append(String line) throws IOException, SQLCipherException {
+		long rowBytes = estimateBytes(line);
+		if (totalBytes + rowBytes > maxResultBytes) {
+			throw new SQLCipherException("Query result exceeds the maximum result size of " + maxResultBytes
+					+ " bytes; narrow the query or raise the limit", -1, new ArrayList<>());
+		}
+		totalBytes += rowBytes;
+
+		if (spill == null && memoryBytes + rowBytes > memoryBudgetBytes) {
+			startSpill();
+		}
+
+		if (spill == null) {
+			memoryRows.add(line);
+			memoryBytes += rowBytes;
+		} else {
+			writeRow(line);
+		}
+		size++;
+	}
+
+	/**
+	 * Flushes pending spilled rows so they can be read back.
+	 */
+	void finish() throws IOException {
+		if (writer != null) {
+			writer.close();
+			writer = null;
+		}
+	}
+
+	public boolean isSpilled() {
+		return spill != null;
+	}
+
+	/**
+	 * @return estimated size of the result in bytes as it was appended, wherever
+	 *         it is stored
+	 */
+	public long getResultBytes() {
+		return totalBytes;
+	}
+
+	@Override
+	public int size() {
+		return spill == null ? memoryRows.size() : size;
+	}
+
+	@Override
+	public String get(int i) {
+		if (spill == null) {
+			return memoryRows.get(i);
+		}
+		if (i < 0 || i >= size) {
+			throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + size);
+		}
+
+		try {
+			if (cursor == null || cursor.nextRow > i) {
+				closeCursor();
+				cursor = openReader(i - i % INDEX_STRIDE);
+			}
+			while (cursor.nextRow < i) {
+				cursor.skip();
+			}
+			return cursor.next();
+		} catch (IOException e) {
+			throw new UncheckedIOException("Failed to read spilled result row " + i, e);
+		}
+	}
+
+	@Override
+	public Iterator<String> iterator() {
+		if (spill == null) {
+			return memoryRows.iterator();
+		}
+
+		return new Iterator<String>() {
+			private RowReader reader;
+			private int row;
+
+			@Override
+			public boolean hasNext() {
+				if (row < size) {
+					return true;
+				}
+				closeQuietly(reader);
+				return false;
+			}
+
+			@Override
+			public String next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				try {
+					if (reader == null) {
+						reader = openReader(0);
+					}
+					row++;
+					return reader.next();
+				} catch (IOException e) {
+					throw new UncheckedIOException("Failed to read spilled result row " + row, e);
+				}
+			}
+		};
+	}
+
+	@Override
+	public String set(int i, String line) {
+		return mutableRows().set(i, line);
+	}
+
+	@Override
+	public void add(int i, String line) {
+		mutableRows().add(i, line);
+		modCount++;
+	}
+
+	@Override
+	public String remove(int i) {
+		String removed = mutableRows().remove(i);
+		modCount++;
+		return removed;
+	}
+
+	/**
+	 * Brings spilled rows back onto the heap so the list can be modified.
+	 */
+	private List<String> mutableRows() {
+		if (spill != null) {
+			List<String> rows = new ArrayList<>(size);
+			for (String line : this) {
+				rows.add(line);
+			}
+			closeCursor();
+			cleanable.clean();
+			cleanable = null;
+			spill = null;
+			writer = null;
+			memoryRows = rows;
+			memoryBytes = totalBytes;
+		}
+		return memoryRows;
+	}
+
+	/**
+	 * Deletes the spill file, if any. The list is empty afterwards.
+	 */
+	@Override
+	public void close() {
+		closeCursor();
+		memoryRows = new ArrayList<>();
+		size = 0;
+		memoryBytes = 0;
+		totalBytes = 0;
+		if (cleanable != null) {
+			cleanable.clean();
+			cleanable = null;
+		}
+		spill = null;
+		writer = null;
+	}
+
+	private void startSpill() throws IOException {
+		spillDir.mkdirs();
+		File file = File.createTempFile("result-", ".spill", spillDir);
+
+		spill = new SpillState(file, encrypt ? newKey() : null);
+		cleanable = CLEANER.register(this, spill);
+		writer = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+		spill.writer = writer;
+
+		// Move what is already buffered so rows keep a single order on disk
+		List<String> buffered = memoryRows;
+		memoryRows = new ArrayList<>();
+		memoryBytes = 0;
+		int row = 0;
+		for (String line : buffered) {
+			writeRow(line, row++);
+		}
+	}
+
+	private void writeRow(String line) throws IOException {
+		writeRow(line, size);
+	}
+
+	private void writeRow(String line, int row) throws IOException {
+		if (row % INDEX_STRIDE == 0) {
+			int slot = row / INDEX_STRIDE;
+			if (slot == index.length) {
+				index = Arrays.copyOf(index, index.length * 2);
+			}
+			index[slot] = writePosition;
+		}
+
+		byte[] bytes = spill.crypt(Cipher.ENCRYPT_MODE, line.getBytes(StandardCharsets.UTF_8), row);
+		writer.writeInt(bytes.length);
+		writer.write(bytes);
+		writePosition += 4 + bytes.length;
+	}
+
+	private RowReader openReader(int row) throws IOException {
+		finish();
+		RowReader reader = new RowReader(spill, row);
+		long offset = index[row / INDEX_STRIDE];
+		long skipped = 0;
+		while (skipped < offset) {
+			long n = reader.in.skip(offset - skipped);
+			if (n <= 0) {
+				reader.close();
+				throw new EOFException("Spill file is shorter than expected");
+			}
+			skipped += n;
+		}
+		return reader;
+	}
+
+	private void closeCursor() {
+		closeQuietly(cursor);
+		cursor = null;
+	}
+
+	private static void closeQuietly(RowReader reader) {
+		if (reader != null) {
+			reader.close();
+		}
+	}
+
+	private static long estimateBytes(String line) {
+		return 2L * line.length() + ROW_OVERHEAD_BYTES;
+	}
+
+	private static SecretKey newKey() throws IOException {
+		try {
+			KeyGenerator generator = KeyGenerator.getInstance("AES");
+			generator.init(128);
+			return generator.generateKey();
+		} catch (GeneralSecurityException e) {
+			throw new IOException("Failed to create spill file key", e);
+		}
+	}
+
+	/**
+	 * Everything the cleaner needs to delete the spill file; it must not refer
+	 * back to the list.
+	 */
+	private static class SpillState implements Runnable {
+		private final File file;
+		private final SecretKey key;
+		private final byte[] nonce = new byte[8];
+		private Cipher cipher;
+		private DataOutputStream writer;
+
+		SpillState(File file, SecretKey key) {
+			this.file = file;
+			this.key = key;
+			new SecureRandom().nextBytes(nonce);
+		}
+
+		/**
+		 * AES-CTR keyed per row (nonce followed by the row number), so any row can
+		 * be decrypted on its own.
+		 */
+		byte[] crypt(int mode, byte[] data, int row) throws IOException {
+			if (key == null) {
+				return data;
+			}
+			byte[] iv = Arrays.copyOf(nonce, 16);
+			iv[8] = (byte) (row >>> 24);
+			iv[9] = (byte) (row >>> 16);
+			iv[10] = (byte) (row >>> 8);
+			iv[11] = (byte) row;
+			try {
+				if (cipher == null) {
+					cipher = Cipher.getInstance("AES/CTR/NoPadding");
+				}
+				cipher.init(mode, key, new IvParameterSpec(iv));
+				return cipher.doFinal(data);
+			} catch (GeneralSecurityException e) {
+				throw new IOException("Failed to " + (mode == Cipher.ENCRYPT_MODE ? "encrypt" : "decrypt")
+						+ " spilled row " + row, e);
+			}
+		}
+
+		@Override
+		public void run() {
+			try {
+				if (writer != null) {
+					writer.close();
+				}
+			} catch (IOException e) {
+				// Deleting the file below is what matters
+			}
+			file.delete();
+		}
+	}
+
+	private static class RowReader {
+		private final SpillState spill;
+		private final DataInputStream in;
+		private int nextRow;
+
+		RowReader(SpillState spill, int firstRow) throws IOException {
+			this.spill = spill;
+			this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(spill.file), 64 * 1024));
+			this.nextRow = firstRow;
+		}
+
+		String next() throws IOException {
+			byte[] bytes = new byte[in.readInt()];
+			in.readFully(bytes);
+			return new String(spill.crypt(Cipher.DECRYPT_MODE, bytes, nextRow++), StandardCharsets.UTF_8);
+		}
+
+		void skip() throws IOException {
+			in.skipNBytes(in.readInt());
+			nextRow++;
+		}
+
+		void close() {
+			try {
+				in.close();
+			} catch (IOException e) {
+				// Nothing left to release
+			}
+		}
+	}
+}
@@ -1,18 +1,15 @@
 
 package com.clinikdb.dbcrypt;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.function.Supplier;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.FileHandler;
 import java.util.logging.Level;
@@ -21,25 +18,29 @@ import java.util.logging.SimpleFormatter;
 
 /**
  * A utility class for interacting with encrypted SQLite databases using
- * SQLCipher and native binaries.
+ * SQLCipher. Statements run through an {@link ExecutionBackend}, by default the
+ * sqlcipher shell ({@link ShellProcessBackend}).
  */
 public class SqliteTool {
 
 	private static final Logger LOGGER = Logger.getLogger(SqliteTool.class.getName());
 
-	private File sqlcipherBinary; // Used for Windows
-									// (extracted) or
-									// macOS
-									// (system-installed)
-	private File dllFile; // Only used on
-							// Windows
+	private final Supplier<ExecutionBackend> backendFactory;
+	private volatile ExecutionBackend backend;
 	private String dbPath;
 	private String passkey;
 	private File workingDir;
 	private boolean enableLogging = false;
-	private static final String OS = System.getProperty("os.name").toLowerCase();
-	private static final boolean IS_WINDOWS = OS.contains("win");
-	private static final boolean IS_MAC = OS.contains("mac");
+	private long resultMemoryBudgetBytes = DEFAULT_RESULT_MEMORY_BUDGET_BYTES;
+	private long maxResultBytes = Long.MAX_VALUE;
+	private boolean encryptSpillFiles = true;
+	private SnapshotReplica readSnapshot;
+	private int blobChunkSize = DEFAULT_BLOB_CHUNK_SIZE;
+	private Boolean orderedAggregates; // whether group_concat takes ORDER BY, once known
+	static final String LOG_QUERY_PREFIX = "Executing SQL query: ";
+	static final long DEFAULT_RESULT_MEMORY_BUDGET_BYTES = 32L * 1024 * 1024;
+	private static final int DEFAULT_BLOB_CHUNK_SIZE = 1024 * 1024;
+	private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
 
 	static {
 		try {
@@ -61,7 +62,75 @@ public class SqliteTool {
 		}
 	}
 
+	public SqliteTool() {
+		this(ShellProcessBackend::new);
+	}
+
+	/**
+	 * @param backendFactory creates the backend used by each
+	 *                       {@link #initDb(String, String, boolean)}, e.g.
+	 *                       {@code JdbcBackend::new} to run in-process
+	 */
+	public SqliteTool(Supplier<ExecutionBackend> backendFactory) {
+		this.backendFactory = backendFactory;
+	}
+
+	/**
+	 * Sets how many bytes of query output (estimated heap size) are kept in
+	 * memory. Larger results are spilled to a temporary file in the working
+	 * directory and read back lazily through the returned list.
+	 */
+	public void setResultMemoryBudget(long bytes) {
+		this.resultMemoryBudgetBytes = bytes;
+	}
+
+	/**
+	 * Sets the size at which a query result is rejected with a
+	 * {@link SQLCipherException} instead of being collected. Unlimited by default.
+	 */
+	public void setMaxResultSize(long bytes) {
+		this.maxResultBytes = bytes;
+	}
+
+	/**
+	 * Whether spilled rows are encrypted with a throwaway in-memory key. Enabled
+	 * by default since the rows come from an encrypted database.
+	 */
+	public void setEncryptSpillFiles(boolean encryptSpillFiles) {
+		this.encryptSpillFiles = encryptSpillFiles;
+	}
+
+	/**
+	 * Routes {@link #executeReadOnlySql(String)} to the given snapshot while it is
+	 * fresh. Pass null to send all queries to the live database again.
+	 */
+	public void setReadSnapshot(SnapshotReplica readSnapshot) {
+		this.readSnapshot = readSnapshot;
+	}
+
+	/**
+	 * Sets how many bytes {@link #readBlob} and {@link #writeBlob} move per
+	 * chunk, 1 MB by default. Each chunk travels as a hex string of twice that
+	 * length.
+	 *
+	 * Over the shell, SQLite loads (and SQLCipher decrypts) the whole value for
+	 * every chunk read, so reading a value costs about size * size / chunk bytes
+	 * of I/O. Keep chunks large for large values.
+	 */
+	public void setBlobChunkSize(int bytes) {
+		this.blobChunkSize = bytes;
+	}
+
 	public void initDb(String dbPath, String passkey, boolean enableLogging) throws IOException {
+		initDb(dbPath, passkey, enableLogging, new File(System.getProperty("java.io.tmpdir"), "sqlite-temp"));
+	}
+
+	/**
+	 * Variant of {@link #initDb(String, String, boolean)} with an explicit working
+	 * directory, so several tools can run side by side without extracting the
+	 * bundled binaries over each other.
+	 */
+	void initDb(String dbPath, String passkey, boolean enableLogging, File workingDir) throws IOException {
 		this.dbPath = dbPath;
 		this.passkey = passkey;
 		this.enableLogging = enableLogging;
@@ -69,43 +138,17 @@ public class SqliteTool {
 		log(Level.INFO, "Initializing SQLite tool with database path: {0}, logging enabled: {1}", dbPath,
 				enableLogging);
 
-		workingDir = new File(System.getProperty("java.io.tmpdir"), "sqlite-temp");
+		this.workingDir = workingDir;
+		this.orderedAggregates = null;
 		workingDir.mkdirs();
 
 		log(Level.FINE, "Creating temporary directory: {0}", workingDir.getAbsolutePath());
 
-		if (IS_WINDOWS) {
-			sqlcipherBinary = extractResourceTo("sqlite3.exe", workingDir);
-			dllFile = extractResourceTo("sqlite3.dll", workingDir);
-		} else if (IS_MAC) {
-			// Use system-installed sqlcipher
-			sqlcipherBinary = new File("/opt/homebrew/bin/sqlcipher");
-			if (!sqlcipherBinary.exists() || !sqlcipherBinary.canExecute()) {
-				// Fallback to PATH lookup
-				try {
-					ProcessBuilder pb = new ProcessBuilder("which", "sqlcipher");
-					Process process = pb.start();
-					BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
-					String path = reader.readLine();
-					if (path != null && !path.isEmpty()) {
-						sqlcipherBinary = new File(path.trim());
-					}
-					process.waitFor();
-					if (!sqlcipherBinary.exists() || !sqlcipherBinary.canExecute()) {
-						log(Level.SEVERE, "sqlcipher not found or not executable on macOS");
-						throw new IOException("sqlcipher not found or not executable on macOS");
-					}
-				} catch (InterruptedException e) {
-					Thread.currentThread().interrupt();
-					log(Level.SEVERE, "Interrupted while locating sqlcipher", e);
-					throw new IOException("Failed to locate sqlcipher", e);
-				}
-			}
-			log(Level.INFO, "Using system sqlcipher at: {0}", sqlcipherBinary.getAbsolutePath());
-		} else {
-			log(Level.SEVERE, "Unsupported operating system: {0}", OS);
-			throw new UnsupportedOperationException("Unsupported operating system: " + OS);
+		if (backend != null) {
+			backend.close();
 		}
+		backend = backendFactory.get();
+		backend.open(dbPath, passkey, workingDir, enableLogging);
 
 		log(Level.INFO, "Successfully initialized SQLCipher resources");
 	}
@@ -131,94 +174,196 @@ public class SqliteTool {
 	}
 
 	public List<String> executeSql(String sql) throws IOException, InterruptedException, SQLCipherException {
-		log(Level.INFO, "Executing SQL query: {0}", sql);
+		return executeSqlLoggedAs(sql, sql);
+	}
 
-		if (sqlcipherBinary == null || dbPath == null || passkey == null) {
-			log(Level.SEVERE, "SQLite tool not initialized");
-			throw new IllegalStateException("Call initDb() before executing SQL.");
+	/**
+	 * Variant of {@link #executeSql(String)} that logs the given text instead of
+	 * the SQL, or nothing if it is null.
+	 */
+	List<String> executeSqlLoggedAs(String sql, String loggedSql)
+			throws IOException, InterruptedException, SQLCipherException {
+		if (loggedSql != null) {
+			logQuery(loggedSql);
 		}
 
-		List<String> output = new ArrayList<>();
-		List<String> errorCodes = new ArrayList<>();
+		checkInitialized();
 
-		ProcessBuilder builder = new ProcessBuilder(sqlcipherBinary.getAbsolutePath(), dbPath);
-		builder.directory(workingDir);
-		// Don't redirect error stream - we want to capture it separately
-		builder.redirectErrorStream(false);
-
-		if (IS_WINDOWS) {
-			builder.environment().put("PATH", workingDir.getAbsolutePath() + ";" + System.getenv("PATH"));
-		} else if (IS_MAC) {
-			builder.environment().put("DYLD_LIBRARY_PATH", workingDir.getAbsolutePath());
+		SpillableResultList output = new SpillableResultList(resultMemoryBudgetBytes, maxResultBytes, workingDir,
+				encryptSpillFiles);
+		boolean completed = false;
+		try {
+			backend.execute(sql, output::append);
+			output.finish();
+			completed = true;
+		} finally {
+			if (!completed) {
+				output.close();
+			}
 		}
 
-		log(Level.FINE, "Starting SQLCipher process for database: {0}", dbPath);
-
-		Process process = builder.start();
-
-		try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(process.getOutputStream()))) {
-			writer.write("PRAGMA cipher_compatibility = 3;\n");
-			writer.write("PRAGMA key = '" + passkey + "';\n");
-			writer.write(".mode csv\n");
-			writer.write(".headers on\n");
-			writer.write(sql + "\n");
-			writer.write(".exit\n");
-			writer.flush();
+		log(Level.FINE, "SQL query output collected, lines: {0}, spilled: {1}", output.size(), output.isSpilled());
+		return output;
+	}
 
-			log(Level.FINE, "SQL commands written to process");
+	/**
+	 * Executes a query that only reads, on the attached snapshot if there is a
+	 * fresh one and on the live database otherwise.
+	 */
+	public List<String> executeReadOnlySql(String sql) throws IOException, InterruptedException, SQLCipherException {
+		if (readSnapshot != null && readSnapshot.isFresh()) {
+			log(Level.FINE, "Routing read-only SQL query to snapshot");
+			logQuery(sql);
+			return readSnapshot.executeSql(sql, resultMemoryBudgetBytes, maxResultBytes);
 		}
 
-		// Read standard output
-		try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
-			String line;
-			while ((line = reader.readLine()) != null) {
-				output.add(line);
-			}
-
-			log(Level.FINE, "SQL query output collected, lines: {0}", output.size());
+		if (readSnapshot != null) {
+			log(Level.WARNING, "Snapshot missing or stale, reading from live database");
 		}
+		return executeSql(sql);
+	}
 
-		// Read error output
-		try (BufferedReader errorReader = new BufferedReader(new InputStreamReader(process.getErrorStream()))) {
-			String errorLine;
-			while ((errorLine = errorReader.readLine()) != null) {
-				errorCodes.add(errorLine);
-				log(Level.WARNING, "SQLCipher error output: {0}", errorLine);
-			}
+	public String executeReadOnlySqlGetResultAsJson(String sql)
+			throws IOException, InterruptedException, SQLCipherException {
+		List<String> output = executeReadOnlySql(sql);
+		try {
+			return toJson(output);
+		} finally {
+			release(output);
 		}
+	}
 
-		int exitCode = process.waitFor();
-		log(Level.INFO, "SQL process completed with exit code: {0}", exitCode);
+	/**
+	 * Streams a BLOB value to the given output in fixed-size chunks, without CSV
+	 * decoding or holding the whole value in memory. Backends that can read the
+	 * value in one pass do so; see {@link ExecutionBackend#readBlob}. Otherwise
+	 * see {@link #setBlobChunkSize(int)} for the cost of large values.
+	 *
+	 * @return the number of bytes written; 0 for an empty or NULL value or a
+	 *         missing row
+	 */
+	public long readBlob(String table, String column, long rowid, OutputStream out)
+			throws IOException, InterruptedException, SQLCipherException {
+		log(Level.INFO, "Reading BLOB {0}.{1} of row {2}", table, column, rowid);
+		checkInitialized();
 
-		// Check for errors and throw exception if any exist
-		// SQLCipher specific: wrong password often shows as "file is not a database" or
-		// similar
-		boolean hasPasswordError = errorCodes.stream()
-				.anyMatch(err -> err.toLowerCase().contains("file is not a database")
-						|| err.toLowerCase().contains("file is encrypted")
-						|| err.toLowerCase().contains("database disk image is malformed")
-						|| err.toLowerCase().contains("unsupported file format"));
+		long direct = backend.readBlob(table, column, rowid, out);
+		if (direct >= 0) {
+			log(Level.INFO, "Read {0} BLOB bytes in one pass", direct);
+			return direct;
+		}
 
-		if (hasPasswordError) {
-			String errorMessage = "SQLCipher authentication failed - incorrect password or corrupted database";
-			if (!errorCodes.isEmpty()) {
-				errorMessage += "\nError details: " + String.join("\n", errorCodes);
+		String source = quoteIdentifier(table) + " AS b WHERE b.rowid = " + rowid;
+		// length() and substr() count characters in text, e.g. a value stored by
+		// CSV-based code, so make sure they count bytes
+		String value = "CAST(b." + quoteIdentifier(column) + " AS BLOB)";
+		int chunk = blobChunkSize;
+		// One row per chunk, each carrying its slice as hex
+		String sql = "WITH RECURSIVE blob_chunk(start_pos) AS ("
+				+ "SELECT 1 FROM " + source + " AND length(" + value + ") > 0 "
+				+ "UNION ALL SELECT blob_chunk.start_pos + " + chunk + " FROM blob_chunk "
+				+ "WHERE blob_chunk.start_pos + " + chunk + " <= (SELECT length(" + value + ") FROM " + source
+				+ ")) SELECT hex(substr(" + value + ", blob_chunk.start_pos, " + chunk + ")) AS blob_chunk "
+				+ "FROM blob_chunk, " + source + " ORDER BY blob_chunk.start_pos;";
+
+		byte[] buffer = new byte[chunk];
+		long[] written = { 0 };
+		boolean[] headerSeen = { false };
+		backend.execute(sql, line -> {
+			if (!headerSeen[0]) {
+				headerSeen[0] = "blob_chunk".equals(line);
+				return;
 			}
-			log(Level.SEVERE, "SQLCipher password error: {0}", errorMessage);
-			throw new SQLCipherException(errorMessage, exitCode, errorCodes);
-		}
+			// Only the last chunk may be short
+			if (written[0] % chunk != 0) {
+				throw new IOException("BLOB chunk after a short chunk at byte " + written[0]);
+			}
+			int length = decodeHex(line, buffer);
+			out.write(buffer, 0, length);
+			written[0] += length;
+		});
+		out.flush();
+
+		log(Level.INFO, "Read {0} BLOB bytes", written[0]);
+		return written[0];
+	}
 
-		if (!errorCodes.isEmpty() || exitCode != 0) {
-			String errorMessage = "SQLCipher execution failed with exit code: " + exitCode;
-			if (!errorCodes.isEmpty()) {
-				errorMessage += "\nError details: " + String.join("\n", errorCodes);
+	/**
+	 * Replaces a BLOB value with the contents of the given stream. The data is
+	 * sent in fixed-size chunks into a temporary table and assembled in one
+	 * transaction, so a failure leaves the old value in place.
+	 *
+	 * SQLite before 3.44 can't order the chunks inside group_concat, so there
+	 * every chunk is compared with its place in the stored value before the
+	 * transaction commits.
+	 *
+	 * @return the number of bytes stored
+	 * @throws SQLCipherException if the row does not exist or the stored value
+	 *                            does not match
+	 */
+	public long writeBlob(String table, String column, long rowid, InputStream in)
+			throws IOException, InterruptedException, SQLCipherException {
+		log(Level.INFO, "Writing BLOB {0}.{1} of row {2}", table, column, rowid);
+		checkInitialized();
+
+		String target = quoteIdentifier(table);
+		String value = quoteIdentifier(column);
+		long[] written = { 0 };
+		String[] storedLength = { null };
+		boolean[] headerSeen = { false };
+		int chunk = blobChunkSize;
+		boolean ordered = supportsOrderedAggregates();
+
+		backend.executeScript(script -> {
+			script.write("CREATE TEMP TABLE IF NOT EXISTS blob_chunk (seq INTEGER PRIMARY KEY, data BLOB);");
+			script.write("DELETE FROM temp.blob_chunk;");
+
+			byte[] buffer = new byte[chunk];
+			int length;
+			while ((length = in.readNBytes(buffer, 0, buffer.length)) > 0) {
+				script.write("INSERT INTO temp.blob_chunk (data) VALUES (X'" + encodeHex(buffer, length) + "');");
+				written[0] += length;
 			}
 
-			log(Level.SEVERE, "SQLCipher error: {0}", errorMessage);
-			throw new SQLCipherException(errorMessage, exitCode, errorCodes);
+			// group_concat yields text, so cast the result back
+			script.write("UPDATE " + target + " SET " + value + " = CAST(coalesce(" + (ordered
+					? "(SELECT group_concat(data, '' ORDER BY seq) FROM temp.blob_chunk)"
+					: "(SELECT group_concat(data, '') FROM (SELECT data FROM temp.blob_chunk ORDER BY seq))")
+					+ ", X'') AS BLOB) WHERE rowid = " + rowid + ";");
+			if (!ordered) {
+				// Older SQLite only keeps the subquery's order in practice, so check
+				// it; the trigger aborts, and so rolls back, on a misplaced chunk
+				script.write("CREATE TEMP TABLE IF NOT EXISTS blob_check (in_order INTEGER);");
+				script.write("CREATE TEMP TRIGGER IF NOT EXISTS blob_check_order BEFORE INSERT ON blob_check "
+						+ "WHEN NOT NEW.in_order BEGIN "
+						+ "SELECT RAISE(ABORT, 'BLOB chunks were stored out of order'); END;");
+				script.write("INSERT INTO temp.blob_check SELECT NOT EXISTS (SELECT 1 FROM temp.blob_chunk WHERE "
+						+ "substr((SELECT " + value + " FROM " + target + " WHERE rowid = " + rowid + "), (seq - 1) * "
+						+ chunk + " + 1, length(data)) != data);");
+				script.write("DROP TABLE temp.blob_check;");
+			}
+			script.write("DROP TABLE temp.blob_chunk;");
+			script.write("SELECT length(" + value + ") AS blob_length FROM " + target + " WHERE rowid = " + rowid
+					+ ";");
+		}, line -> {
+			// Skip the shell's output before the header, e.g. "ok" from PRAGMA key
+			if (headerSeen[0]) {
+				storedLength[0] = line;
+			} else {
+				headerSeen[0] = "blob_length".equals(line);
+			}
+		});
+
+		if (!String.valueOf(written[0]).equals(storedLength[0])) {
+			String errorMessage = "BLOB write to " + table + "." + column + " of row " + rowid + " stored "
+					+ (storedLength[0] == null ? "nothing (no such row?)" : storedLength[0] + " bytes") + ", expected "
+					+ written[0];
+			log(Level.SEVERE, errorMessage);
+			throw new SQLCipherException(errorMessage, 0, new ArrayList<>());
 		}
 
-		return output;
+		log(Level.INFO, "Wrote {0} BLOB bytes", written[0]);
+		return written[0];
 	}
 
 	// Custom exception class for SQLCipher errors
@@ -227,31 +372,87 @@ public class SqliteTool {
 		return String.join("\n", executeSql(sql));
 	}
 
+	/**
+	 * Runs a query and returns its output as JSON. The JSON text counts against
+	 * {@link #setMaxResultSize(long)} like the query output does; use
+	 * {@link #executeSqlWriteJson(String, Writer)} for results that should not be
+	 * held in memory.
+	 */
 	public String executeSqlGetResultAsJson(String sql) throws IOException, InterruptedException, SQLCipherException {
 		log(Level.INFO, "Executing SQL query for JSON output: {0}", sql);
 
 		List<String> output = executeSql(sql);
+		try {
+			return toJson(output);
+		} finally {
+			release(output);
+		}
+	}
 
+	/**
+	 * Runs a query and writes its output as JSON to the given writer one row at a
+	 * time, so neither the rows nor the JSON text have to fit in memory.
+	 */
+	public void executeSqlWriteJson(String sql, Writer out)
+			throws IOException, InterruptedException, SQLCipherException {
+		log(Level.INFO, "Executing SQL query for streamed JSON output: {0}", sql);
+
+		List<String> output = executeSql(sql);
+		try {
+			logJsonConversion(writeJson(output, out, Long.MAX_VALUE));
+			out.flush();
+		} finally {
+			release(output);
+		}
+	}
+
+	/**
+	 * Converts CSV output of {@link #executeSql(String)} (headers on) to a JSON
+	 * array.
+	 *
+	 * @throws SQLCipherException if the JSON grows beyond the maximum result size
+	 */
+	String toJson(List<String> output) throws IOException, SQLCipherException {
+		StringBuilder jsonBuilder = new StringBuilder();
+		logJsonConversion(writeJson(output, jsonBuilder, maxResultBytes));
+		return jsonBuilder.toString();
+	}
+
+	/**
+	 * Writes CSV output of {@link #executeSql(String)} (headers on) as a JSON
+	 * array, one row at a time.
+	 *
+	 * @param maxJsonBytes estimated heap size of the JSON text at which writing
+	 *                     stops with a {@link SQLCipherException}
+	 * @return the number of rows written, or -1 if there was no output
+	 */
+	static int writeJson(List<String> output, Appendable out, long maxJsonBytes)
+			throws IOException, SQLCipherException {
+		int start = 0;
 		if (!output.isEmpty() && "ok".equals(output.get(0))) {
-			output.remove(0); // Remove the "ok" response
+			start = 1; // Skip the "ok" response
 		}
-		if (output.isEmpty()) {
-			log(Level.WARNING, "No output from SQL query");
-			return "[]";
+		if (output.size() <= start) {
+			out.append("[]");
+			return -1;
 		}
 
 		// Assume first line is CSV headers
-		List<String> headers = parseCsvLine(output.get(0));
+		List<String> headers = parseCsvLine(output.get(start));
 		if (headers.isEmpty()) {
-			String rawOutput = String.join("\n", output);
-			log(Level.FINE, "Non-CSV output, converting to JSON message");
-			return "{\n  \"message\": \"" + escapeJson(rawOutput) + "\"\n}";
+			String rawOutput = String.join("\n", output.subList(start, output.size()));
+			out.append("{\n  \"message\": \"").append(escapeJson(rawOutput)).append("\"\n}");
+			return 0;
 		}
 
-		StringBuilder jsonBuilder = new StringBuilder("[\n"); // JSON array start
+		out.append("[\n"); // JSON array start
+		long jsonChars = 2;
 
-		for (int i = 1; i < output.size(); i++) {
-			List<String> values = parseCsvLine(output.get(i));
+		StringBuilder jsonBuilder = new StringBuilder();
+		int i = start + 1;
+		for (Iterator<String> rows = output.listIterator(i); rows.hasNext(); i++) {
+			List<String> values = parseCsvLine(rows.next());
+			jsonBuilder.setLength(0);
 			jsonBuilder.append("  {\n");
 
 			// First pass: collect non-null fields
@@ -285,18 +486,127 @@ public class SqliteTool {
 				jsonBuilder.append(",");
 			}
 			jsonBuilder.append("\n");
+
+			// Same estimate as for the rows themselves: two bytes per char
+			jsonChars += jsonBuilder.length();
+			if (2 * jsonChars > maxJsonBytes) {
+				throw new SQLCipherException("JSON result exceeds the maximum result size of " + maxJsonBytes
+						+ " bytes; narrow the query, raise the limit or stream it with executeSqlWriteJson", -1,
+						new ArrayList<>());
+			}
+			out.append(jsonBuilder);
 		}
 
-		jsonBuilder.append("]");
-		log(Level.INFO, "SQL query results converted to JSON");
-		return jsonBuilder.toString();
+		out.append("]");
+		return i - start - 1;
+	}
+
+	private void logJsonConversion(int rows) {
+		if (rows < 0) {
+			log(Level.WARNING, "No output from SQL query");
+		} else {
+			log(Level.INFO, "SQL query results converted to JSON, rows: {0}", rows);
+		}
+	}
+
+	/**
+	 * Deletes the spill file of an output that has been fully consumed.
+	 */
+	private static void release(List<String> output) {
+		if (output instanceof SpillableResultList) {
+			((SpillableResultList) output).close();
+		}
+	}
+
+	/**
+	 * Logs a query on a single line, with backslashes and line breaks escaped, so
+	 * a captured log can be replayed with {@link WorkloadReplay}.
+	 */
+	private void logQuery(String sql) {
+		if (enableLogging) {
+			LOGGER.log(Level.INFO, LOG_QUERY_PREFIX + "{0}", toLogLine(sql));
+		}
+	}
+
+	static String toLogLine(String sql) {
+		return sql.replace("\\", "\\\\").replace("\n", "\\n").replace("\r", "\\r");
+	}
+
+	/**
+	 * Reverses {@link #toLogLine(String)}.
+	 */
+	static String fromLogLine(String line) {
+		StringBuilder sql = new StringBuilder(line.length());
+		for (int i = 0; i < line.length(); i++) {
+			char c = line.charAt(i);
+			if (c == '\\' && i + 1 < line.length()) {
+				char escaped = line.charAt(++i);
+				sql.append(escaped == 'n' ? '\n' : escaped == 'r' ? '\r' : escaped);
+			} else {
+				sql.append(c);
+			}
+		}
+		return sql.toString();
+	}
+
+	private void checkInitialized() {
+		if (backend == null || dbPath == null || passkey == null) {
+			log(Level.SEVERE, "SQLite tool not initialized");
+			throw new IllegalStateException("Call initDb() before executing SQL.");
+		}
+	}
+
+	/**
+	 * group_concat accepts ORDER BY from SQLite 3.44 on.
+	 */
+	private boolean supportsOrderedAggregates() throws IOException, InterruptedException, SQLCipherException {
+		if (orderedAggregates == null) {
+			List<String> output = executeSqlLoggedAs("SELECT sqlite_version() AS version;", null);
+			String[] version = output.isEmpty() ? new String[0] : output.get(output.size() - 1).split("\\.");
+			release(output);
+			int major = version.length > 0 ? Integer.parseInt(version[0]) : 0;
+			int minor = version.length > 1 ? Integer.parseInt(version[1]) : 0;
+			orderedAggregates = major > 3 || (major == 3 && minor >= 44);
+			log(Level.FINE, "SQLite version {0}, ordered group_concat: {1}", String.join(".", version),
+					orderedAggregates);
+		}
+		return orderedAggregates;
+	}
+
+	static String quoteIdentifier(String name) {
+		return "\"" + name.replace("\"", "\"\"") + "\"";
+	}
+
+	static String encodeHex(byte[] bytes, int length) {
+		char[] hex = new char[length * 2];
+		for (int i = 0; i < length; i++) {
+			hex[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xF];
+			hex[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xF];
+		}
+		return new String(hex);
+	}
+
+	static int decodeHex(String hex, byte[] buffer) throws IOException {
+		int length = hex.length() / 2;
+		if (hex.length() % 2 != 0 || length > buffer.length) {
+			throw new IOException("Unexpected BLOB chunk of " + hex.length() + " hex digits");
+		}
+		for (int i = 0; i < length; i++) {
+			int high = Character.digit(hex.charAt(i * 2), 16);
+			int low = Character.digit(hex.charAt(i * 2 + 1), 16);
+			if (high < 0 || low < 0) {
+				throw new IOException("Invalid hex digit in BLOB chunk");
+			}
+			buffer[i] = (byte) ((high << 4) | low);
+		}
+		return length;
 	}
 
 	/**
 	 * Robust CSV parser that handles quoted fields containing commas or escaped
 	 * quotes.
 	 */
-	private List<String> parseCsvLine(String line) {
+	static List<String> parseCsvLine(String line) {
 		List<String> result = new ArrayList<>();
 		if (line == null || line.isEmpty()) {
 			return result;
@@ -325,21 +635,26 @@ public class SqliteTool {
 		return result;
 	}
 
+	/**
+	 * Stops the statement this tool is running on another thread; see
+	 * {@link ExecutionBackend#cancel()}.
+	 */
+	public void cancel() {
+		ExecutionBackend running = backend;
+		if (running != null) {
+			log(Level.INFO, "Cancelling SQL execution on: {0}", dbPath);
+			running.cancel();
+		}
+	}
+
 	public void closeDb() {
 		log(Level.INFO, "Closing SQLite tool and cleaning up resources");
 
-		if (IS_WINDOWS && sqlcipherBinary != null && sqlcipherBinary.exists()) {
-			sqlcipherBinary.delete();
-			log(Level.FINE, "Deleted binary: {0}", sqlcipherBinary.getAbsolutePath());
+		if (backend != null) {
+			backend.close();
 		}
 
-		if (dllFile != null && dllFile.exists()) {
-			dllFile.delete();
-			log(Level.FINE, "Deleted DLL: {0}", dllFile.getAbsolutePath());
-		}
-
-		sqlcipherBinary = null;
-		dllFile = null;
+		backend = null;
 		dbPath = null;
 		passkey = null;
 		workingDir = null;
@@ -347,9 +662,8 @@ public class SqliteTool {
 		log(Level.INFO, "SQLite tool cleanup complete");
 	}
 
-	private String escapeJson(String s) {
+	private static String escapeJson(String s) {
 		if (s == null) {
-			log(Level.FINE, "Null string passed to JSON escape");
 			return "";
 		}
 
@@ -388,37 +702,7 @@ public class SqliteTool {
 			}
 		}
 
-		String escaped = sb.toString();
-		log(Level.FINEST, "Escaped JSON string: {0}", escaped);
-		return escaped;
-	}
-
-	private File extractResourceTo(String resourceName, File targetDir) throws IOException {
-		log(Level.INFO, "Extracting resource: {0} to {1}", resourceName, targetDir.getAbsolutePath());
-
-		InputStream in = SqliteTool.class.getResourceAsStream("/" + resourceName);
-		if (in == null) {
-			log(Level.SEVERE, "Resource not found: {0}", resourceName);
-			throw new FileNotFoundException("Resource not found: " + resourceName);
-		}
-
-		File outFile = new File(targetDir, resourceName);
-		try (OutputStream out = new FileOutputStream(outFile)) {
-			byte[] buffer = new byte[4096];
-			int len;
-			while ((len = in.read(buffer)) != -1) {
-				out.write(buffer, 0, len);
-			}
-
-			log(Level.FINE, "Successfully extracted resource: {0}", resourceName);
-		}
-
-		if (resourceName.endsWith(".exe")) {
-			outFile.setExecutable(true);
-			log(Level.FINE, "Set executable permission for: {0}", outFile.getAbsolutePath());
-		}
-
-		return outFile;
+		return sb.toString();
 	}
 
 	// Unified logging helpers
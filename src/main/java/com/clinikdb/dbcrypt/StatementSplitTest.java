@@ -0,0 +1,88 @@
+package com.clinikdb.dbcrypt;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Test class to verify that scripts are split into the statements the shell would run
+ */
+public class StatementSplitTest {
+    private static int failures = 0;
+
+    public static void main(String[] args) {
+        System.out.println("=== Plain statements ===");
+        check("two statements",
+                "CREATE TABLE t (id INTEGER);\nINSERT INTO t VALUES (1);",
+                "CREATE TABLE t (id INTEGER)", "INSERT INTO t VALUES (1)");
+        check("missing final semicolon",
+                "SELECT 1; SELECT 2",
+                "SELECT 1", "SELECT 2");
+        check("empty statements dropped",
+                ";;SELECT 1;;",
+                "SELECT 1");
+
+        System.out.println("\n=== Quotes and comments ===");
+        check("semicolon in string",
+                "INSERT INTO t VALUES ('a;b'); SELECT 1;",
+                "INSERT INTO t VALUES ('a;b')", "SELECT 1");
+        check("escaped quote in string",
+                "INSERT INTO t VALUES ('it''s; fine');",
+                "INSERT INTO t VALUES ('it''s; fine')");
+        check("quoted identifiers",
+                "SELECT \"a;b\", [c;d], `e;f` FROM t;",
+                "SELECT \"a;b\", [c;d], `e;f` FROM t");
+        check("keywords in strings are not counted",
+                "CREATE TRIGGER tr AFTER INSERT ON t BEGIN INSERT INTO log VALUES ('END;'); END; SELECT 1;",
+                "CREATE TRIGGER tr AFTER INSERT ON t BEGIN INSERT INTO log VALUES ('END;'); END", "SELECT 1");
+        check("line comment dropped",
+                "SELECT 1; -- not; a statement\nSELECT 2;",
+                "SELECT 1", "SELECT 2");
+        check("block comment dropped",
+                "SELECT /* ; */ 1;",
+                "SELECT   1");
+
+        System.out.println("\n=== Dot-commands ===");
+        check("dot-command line",
+                ".headers on\nSELECT 1;",
+                ".headers on", "SELECT 1");
+        check("dot-command after comment",
+                "-- export\n.backup main out.db\nSELECT 1;",
+                ".backup main out.db", "SELECT 1");
+        check("decimal point is not a dot-command",
+                "SELECT .5; SELECT 1.5;",
+                "SELECT .5", "SELECT 1.5");
+
+        System.out.println("\n=== Triggers ===");
+        check("trigger body kept whole",
+                "CREATE TRIGGER tr AFTER INSERT ON t BEGIN UPDATE t SET n = 1; DELETE FROM u; END; SELECT 1;",
+                "CREATE TRIGGER tr AFTER INSERT ON t BEGIN UPDATE t SET n = 1; DELETE FROM u; END", "SELECT 1");
+        check("CASE ... END inside trigger body",
+                "CREATE TRIGGER tr AFTER INSERT ON t BEGIN SELECT CASE WHEN 1 THEN 2 END; END; SELECT 3;",
+                "CREATE TRIGGER tr AFTER INSERT ON t BEGIN SELECT CASE WHEN 1 THEN 2 END; END", "SELECT 3");
+        check("CASE in WHEN clause of trigger",
+                "CREATE TEMP TRIGGER tr AFTER UPDATE ON t WHEN CASE new.n WHEN 0 THEN 1 END BEGIN "
+                        + "UPDATE t SET n = CASE WHEN n > 0 THEN n ELSE 0 END; END;",
+                "CREATE TEMP TRIGGER tr AFTER UPDATE ON t WHEN CASE new.n WHEN 0 THEN 1 END BEGIN "
+                        + "UPDATE t SET n = CASE WHEN n > 0 THEN n ELSE 0 END; END");
+        check("identifiers containing END",
+                "CREATE TRIGGER tr AFTER INSERT ON t BEGIN UPDATE t SET end_date = :end; END; SELECT 1;",
+                "CREATE TRIGGER tr AFTER INSERT ON t BEGIN UPDATE t SET end_date = :end; END", "SELECT 1");
+        check("transaction BEGIN/END outside triggers",
+                "BEGIN; SELECT CASE WHEN 1 THEN 2 END; END;",
+                "BEGIN", "SELECT CASE WHEN 1 THEN 2 END", "END");
+
+        System.out.println(failures == 0 ? "\n✓✓✓ ALL SPLIT TESTS PASSED ✓✓✓"
+                : "\n✗✗✗ " + failures + " SPLIT TEST(S) FAILED ✗✗✗");
+        System.out.println("\n=== All Tests Complete ===");
+    }
+
+    private static void check(String name, String sql, String... expected) {
+        List<String> actual = JdbcBackend.splitStatements(sql);
+        if (actual.equals(Arrays.asList(expected))) {
+            System.out.println("✓ " + name);
+        } else {
+            failures++;
+            System.err.println("✗ " + name + ": expected " + Arrays.asList(expected) + " but got " + actual);
+        }
+    }
+}
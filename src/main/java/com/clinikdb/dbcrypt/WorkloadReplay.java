@@ -0,0 +1,444 @@
+package com.clinikdb.dbcrypt;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+/**
+ * Replays a SQL workload against a database and reports throughput, latency
+ * percentiles and error rates per statement type.
+ *
+ * The workload is either a SQL script or a log captured with logging enabled,
+ * in which case every "Executing SQL query:" line is replayed.
+ *
+ * <pre>
+ * WorkloadReplay --db clinic.sqlite --key secret --workload queries.sql
+ *         [--concurrency 4] [--rate 50] [--iterations 10] [--backend shell|jdbc]
+ *         [--memory-budget 33554432] [--compare concurrency=8,backend=jdbc]
+ *         [--in-place]
+ * </pre>
+ *
+ * Every run gets a fresh copy of the database, with its rollback journal or
+ * write-ahead log, so writes in the workload never reach the original file.
+ * {@code --in-place} replays against {@code --db} itself instead.
+ *
+ * With {@code --compare} the workload runs twice, once with the base options
+ * (A) and once with the listed overrides (B), and both are reported side by
+ * side. B starts from the same data as A, so it can't be combined with
+ * {@code --in-place}.
+ */
+public class WorkloadReplay {
+
+	private static final String LOG_MARKER = SqliteTool.LOG_QUERY_PREFIX;
+	private static final String[] DATABASE_FILE_SUFFIXES = { "", "-journal", "-wal" };
+
+	/** One set of options a workload is replayed with. */
+	static class ReplayConfig {
+		String name;
+		int concurrency = 1;
+		double rate = 0; // statements per second, 0 for as fast as possible
+		int iterations = 1;
+		String backend = "shell";
+		long memoryBudgetBytes = SqliteTool.DEFAULT_RESULT_MEMORY_BUDGET_BYTES;
+
+		ReplayConfig copy(String name) {
+			ReplayConfig copy = new ReplayConfig();
+			copy.name = name;
+			copy.concurrency = concurrency;
+			copy.rate = rate;
+			copy.iterations = iterations;
+			copy.backend = backend;
+			copy.memoryBudgetBytes = memoryBudgetBytes;
+			return copy;
+		}
+
+		void set(String option, String value) {
+			switch (option) {
+				case "concurrency":
+					concurrency = Integer.parseInt(value);
+					break;
+				case "rate":
+					rate = Double.parseDouble(value);
+					break;
+				case "iterations":
+					iterations = Integer.parseInt(value);
+					break;
+				case "backend":
+					if (!value.equals("shell") && !value.equals("jdbc")) {
+						throw new IllegalArgumentException("Unknown backend: " + value);
+					}
+					backend = value;
+					break;
+				case "memory-budget":
+					memoryBudgetBytes = Long.parseLong(value);
+					break;
+				default:
+					throw new IllegalArgumentException("Unknown option: " + option);
+			}
+		}
+
+		Supplier<ExecutionBackend> backendFactory() {
+			return backend.equals("jdbc") ? JdbcBackend::new : ShellProcessBackend::new;
+		}
+
+		@Override
+		public String toString() {
+			return name + ": concurrency=" + concurrency + ", rate=" + (rate > 0 ? rate + "/s" : "unlimited")
+					+ ", iterations=" + iterations + ", backend=" + backend + ", memory-budget=" + memoryBudgetBytes;
+		}
+	}
+
+	/** Latencies and errors of one statement type. */
+	static class TypeStats {
+		private final List<Long> latenciesNanos = new ArrayList<>();
+		private int errors;
+		private String firstError;
+
+		synchronized void record(long latencyNanos, Exception error) {
+			latenciesNanos.add(latencyNanos);
+			if (error != null) {
+				errors++;
+				if (firstError == null) {
+					firstError = error.getMessage();
+				}
+			}
+		}
+
+		int count() {
+			return latenciesNanos.size();
+		}
+
+		double errorRate() {
+			return latenciesNanos.isEmpty() ? 0 : (double) errors / latenciesNanos.size();
+		}
+
+		/**
+		 * @return the latency in milliseconds at the given percentile (nearest
+		 *         rank)
+		 */
+		static double percentileMillis(long[] sorted, double percentile) {
+			if (sorted.length == 0) {
+				return 0;
+			}
+			int rank = (int) Math.ceil(percentile / 100.0 * sorted.length);
+			return sorted[Math.max(0, rank - 1)] / 1_000_000.0;
+		}
+
+		long[] sorted() {
+			long[] sorted = new long[latenciesNanos.size()];
+			for (int i = 0; i < sorted.length; i++) {
+				sorted[i] = latenciesNanos.get(i);
+			}
+			Arrays.sort(sorted);
+			return sorted;
+		}
+	}
+
+	/** Outcome of replaying the workload with one configuration. */
+	static class ReplayResult {
+		final ReplayConfig config;
+		final Map<String, TypeStats> byType = new TreeMap<>();
+		long elapsedNanos;
+
+		ReplayResult(ReplayConfig config) {
+			this.config = config;
+		}
+
+		synchronized TypeStats stats(String type) {
+			return byType.computeIfAbsent(type, t -> new TypeStats());
+		}
+
+		double throughput(int count) {
+			return elapsedNanos == 0 ? 0 : count / (elapsedNanos / 1_000_000_000.0);
+		}
+	}
+
+	public static void main(String[] args) {
+		try {
+			run(args);
+		} catch (IllegalArgumentException e) {
+			System.err.println("Error: " + e.getMessage());
+			printUsage();
+			System.exit(2);
+		} catch (Exception e) {
+			System.err.println("Replay failed:");
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+
+	private static void run(String[] args) throws Exception {
+		String dbPath = null;
+		String passkey = null;
+		String workload = null;
+		String compare = null;
+		boolean inPlace = false;
+		ReplayConfig base = new ReplayConfig();
+		base.name = "A";
+
+		for (int i = 0; i < args.length; i++) {
+			String arg = args[i];
+			if (arg.equals("--in-place")) {
+				inPlace = true;
+				continue;
+			}
+			if (!arg.startsWith("--") || i + 1 >= args.length) {
+				throw new IllegalArgumentException("Expected --option value at: " + arg);
+			}
+			String option = arg.substring(2);
+			String value = args[++i];
+			switch (option) {
+				case "db":
+					dbPath = value;
+					break;
+				case "key":
+					passkey = value;
+					break;
+				case "workload":
+					workload = value;
+					break;
+				case "compare":
+					compare = value;
+					break;
+				default:
+					base.set(option, value);
+			}
+		}
+
+		if (dbPath == null || passkey == null || workload == null) {
+			throw new IllegalArgumentException("--db, --key and --workload are required");
+		}
+		if (inPlace && compare != null) {
+			throw new IllegalArgumentException("--compare needs a fresh copy per run and can't run --in-place");
+		}
+
+		List<String> statements = loadWorkload(new File(workload));
+		if (statements.isEmpty()) {
+			throw new IllegalArgumentException("No statements found in " + workload);
+		}
+		System.out.println("Loaded " + statements.size() + " statements from " + workload);
+
+		List<ReplayResult> results = new ArrayList<>();
+		List<ReplayConfig> configs = new ArrayList<>();
+		configs.add(base);
+		if (compare != null) {
+			ReplayConfig other = base.copy("B");
+			for (String override : compare.split(",")) {
+				String[] parts = override.split("=", 2);
+				if (parts.length != 2) {
+					throw new IllegalArgumentException("Expected option=value in --compare: " + override);
+				}
+				other.set(parts[0].trim(), parts[1].trim());
+			}
+			configs.add(other);
+		}
+
+		for (ReplayConfig config : configs) {
+			System.out.println("Running " + config);
+			if (inPlace) {
+				results.add(replay(dbPath, passkey, statements, config));
+				continue;
+			}
+
+			File copy = copyDatabase(new File(dbPath));
+			try {
+				results.add(replay(copy.getAbsolutePath(), passkey, statements, config));
+			} finally {
+				for (String suffix : DATABASE_FILE_SUFFIXES) {
+					Files.deleteIfExists(new File(copy.getPath() + suffix).toPath());
+				}
+			}
+		}
+		printReport(results);
+	}
+
+	/**
+	 * Copies a database, with its rollback journal or write-ahead log if there is
+	 * one, into the temp directory.
+	 */
+	private static File copyDatabase(File db) throws IOException {
+		File baseDir = new File(System.getProperty("java.io.tmpdir"), "sqlite-temp");
+		baseDir.mkdirs();
+		File copy = File.createTempFile("replay-", ".sqlite", baseDir);
+		for (String suffix : DATABASE_FILE_SUFFIXES) {
+			File source = new File(db.getPath() + suffix);
+			if (source.exists()) {
+				Files.copy(source.toPath(), new File(copy.getPath() + suffix).toPath(),
+						StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+		return copy;
+	}
+
+	/**
+	 * Reads statements from a captured log (lines containing
+	 * {@value #LOG_MARKER}) or else from a SQL script.
+	 */
+	static List<String> loadWorkload(File file) throws IOException {
+		List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+		List<String> statements = new ArrayList<>();
+		for (String line : lines) {
+			int marker = line.indexOf(LOG_MARKER);
+			if (marker >= 0) {
+				// Queries are logged on one line with line breaks escaped
+				statements.add(SqliteTool.fromLogLine(line.substring(marker + LOG_MARKER.length()).trim()));
+			}
+		}
+		if (!statements.isEmpty()) {
+			return statements;
+		}
+
+		for (String statement : JdbcBackend.splitStatements(String.join("\n", lines))) {
+			statements.add(statement.startsWith(".") ? statement : statement + ";");
+		}
+		return statements;
+	}
+
+	static ReplayResult replay(String dbPath, String passkey, List<String> statements, ReplayConfig config)
+			throws Exception {
+		ReplayResult result = new ReplayResult(config);
+		int total = statements.size() * config.iterations;
+		AtomicInteger next = new AtomicInteger();
+		long intervalNanos = config.rate > 0 ? (long) (1_000_000_000L / config.rate) : 0;
+
+		File baseDir = new File(System.getProperty("java.io.tmpdir"), "sqlite-temp");
+		baseDir.mkdirs();
+
+		ExecutorService pool = Executors.newFixedThreadPool(config.concurrency);
+		long start = System.nanoTime();
+		AtomicLong nextSlot = new AtomicLong(start);
+		try {
+			List<Future<?>> workers = new ArrayList<>();
+			for (int w = 0; w < config.concurrency; w++) {
+				workers.add(pool.submit(() -> {
+					File workingDir = Files.createTempDirectory(baseDir.toPath(), "replay-").toFile();
+					SqliteTool tool = new SqliteTool(config.backendFactory());
+					try {
+						tool.setResultMemoryBudget(config.memoryBudgetBytes);
+						tool.initDb(dbPath, passkey, false, workingDir);
+
+						int index;
+						while ((index = next.getAndIncrement()) < total) {
+							String sql = statements.get(index % statements.size());
+
+							// With a target rate, latency counts from the scheduled start so a
+							// slow database can't hide its backlog
+							long scheduled = System.nanoTime();
+							if (intervalNanos > 0) {
+								scheduled = nextSlot.getAndAdd(intervalNanos);
+								long wait;
+								while ((wait = scheduled - System.nanoTime()) > 0) {
+									LockSupport.parkNanos(wait);
+								}
+							}
+
+							Exception error = null;
+							try {
+								List<String> output = tool.executeSql(sql);
+								if (output instanceof SpillableResultList) {
+									((SpillableResultList) output).close();
+								}
+							} catch (SQLCipherException | IOException | RuntimeException e) {
+								error = e;
+							}
+							result.stats(statementType(sql)).record(System.nanoTime() - scheduled, error);
+						}
+					} finally {
+						tool.closeDb();
+						workingDir.delete();
+					}
+					return null;
+				}));
+			}
+			for (Future<?> worker : workers) {
+				worker.get();
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+		result.elapsedNanos = System.nanoTime() - start;
+		return result;
+	}
+
+	static String statementType(String sql) {
+		String trimmed = sql.trim();
+		int end = 0;
+		while (end < trimmed.length() && (Character.isLetter(trimmed.charAt(end)) || trimmed.charAt(end) == '.')) {
+			end++;
+		}
+		return end == 0 ? "OTHER" : trimmed.substring(0, end).toUpperCase(Locale.ROOT);
+	}
+
+	private static void printReport(List<ReplayResult> results) {
+		String header = String.format("%-8s %-3s %8s %8s %10s %10s %10s %10s %10s", "TYPE", "CFG", "COUNT",
+				"ERROR %", "OPS/S", "P50 MS", "P95 MS", "P99 MS", "MAX MS");
+		System.out.println();
+		System.out.println(header);
+
+		Map<String, Boolean> types = new TreeMap<>();
+		for (ReplayResult result : results) {
+			for (String type : result.byType.keySet()) {
+				types.put(type, Boolean.TRUE);
+			}
+		}
+
+		for (String type : types.keySet()) {
+			for (ReplayResult result : results) {
+				TypeStats stats = result.byType.get(type);
+				if (stats == null) {
+					continue;
+				}
+				printRow(type, result, stats);
+			}
+		}
+
+		System.out.println();
+		for (ReplayResult result : results) {
+			TypeStats all = new TypeStats();
+			for (TypeStats stats : result.byType.values()) {
+				all.latenciesNanos.addAll(stats.latenciesNanos);
+				all.errors += stats.errors;
+			}
+			printRow("ALL", result, all);
+		}
+
+		for (ReplayResult result : results) {
+			for (Map.Entry<String, TypeStats> entry : result.byType.entrySet()) {
+				if (entry.getValue().firstError != null) {
+					System.out.println(result.config.name + " " + entry.getKey() + " first error: "
+							+ entry.getValue().firstError);
+				}
+			}
+		}
+	}
+
+	private static void printRow(String type, ReplayResult result, TypeStats stats) {
+		long[] sorted = stats.sorted();
+		System.out.println(String.format(Locale.ROOT, "%-8s %-3s %8d %7.2f%% %10.1f %10.2f %10.2f %10.2f %10.2f",
+				type, result.config.name, stats.count(), stats.errorRate() * 100, result.throughput(stats.count()),
+				TypeStats.percentileMillis(sorted, 50), TypeStats.percentileMillis(sorted, 95),
+				TypeStats.percentileMillis(sorted, 99), TypeStats.percentileMillis(sorted, 100)));
+	}
+
+	private static void printUsage() {
+		System.err.println("Usage: WorkloadReplay --db <path> --key <key> --workload <sql file or log>");
+		System.err.println("         [--concurrency N] [--rate statements/s] [--iterations N]");
+		System.err.println("         [--backend shell|jdbc] [--memory-budget bytes]");
+		System.err.println("         [--compare option=value,...] [--in-place]");
+	}
+}
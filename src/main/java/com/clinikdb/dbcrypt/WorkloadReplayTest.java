@@ -0,0 +1,85 @@
+package com.clinikdb.dbcrypt;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Test class to verify workload loading and latency statistics of WorkloadReplay
+ */
+public class WorkloadReplayTest {
+    private static int failures = 0;
+
+    public static void main(String[] args) {
+        try {
+            System.out.println("=== Loading a captured log ===");
+            String report = "PRAGMA query_only = ON;\nSELECT doctor_id,\n       COUNT(*)\nFROM visits\r\nWHERE note LIKE '%\\n%';";
+            String update = "UPDATE patients SET name = 'O''Brien' WHERE id = 1;";
+            File log = File.createTempFile("replay-test", ".log");
+            Files.write(log.toPath(), Arrays.asList(
+                    "Oct 19, 2026 10:00:00 AM com.clinikdb.dbcrypt.SqliteTool executeSqlLoggedAs",
+                    "INFO: " + SqliteTool.LOG_QUERY_PREFIX + SqliteTool.toLogLine(report),
+                    "Oct 19, 2026 10:00:01 AM com.clinikdb.dbcrypt.SqliteTool executeSqlLoggedAs",
+                    "INFO: " + SqliteTool.LOG_QUERY_PREFIX + SqliteTool.toLogLine(update)),
+                    StandardCharsets.UTF_8);
+            List<String> statements = WorkloadReplay.loadWorkload(log);
+            check("one statement per logged query", statements.size() == 2);
+            check("multi-line query restored", statements.get(0).equals(report));
+            check("single-line query restored", statements.get(1).equals(update));
+            log.delete();
+
+            System.out.println("\n=== Loading a SQL script ===");
+            File script = File.createTempFile("replay-test", ".sql");
+            Files.write(script.toPath(), Arrays.asList(
+                    "-- nightly report",
+                    "SELECT 1;",
+                    "CREATE TRIGGER tr AFTER INSERT ON t BEGIN SELECT CASE WHEN 1 THEN 2 END; END;"),
+                    StandardCharsets.UTF_8);
+            statements = WorkloadReplay.loadWorkload(script);
+            check("script split into statements", statements.equals(Arrays.asList("SELECT 1;",
+                    "CREATE TRIGGER tr AFTER INSERT ON t BEGIN SELECT CASE WHEN 1 THEN 2 END; END;")));
+            script.delete();
+
+            System.out.println("\n=== Statement types ===");
+            check("keyword", WorkloadReplay.statementType("  select * from t").equals("SELECT"));
+            check("dot-command", WorkloadReplay.statementType(".backup out.db").equals(".BACKUP"));
+            check("no keyword", WorkloadReplay.statementType("(SELECT 1)").equals("OTHER"));
+
+            System.out.println("\n=== Percentiles ===");
+            long[] sorted = new long[100];
+            for (int i = 0; i < sorted.length; i++) {
+                sorted[i] = (i + 1) * 1_000_000L;
+            }
+            check("p50", WorkloadReplay.TypeStats.percentileMillis(sorted, 50) == 50.0);
+            check("p95", WorkloadReplay.TypeStats.percentileMillis(sorted, 95) == 95.0);
+            check("p99", WorkloadReplay.TypeStats.percentileMillis(sorted, 99) == 99.0);
+            check("max", WorkloadReplay.TypeStats.percentileMillis(sorted, 100) == 100.0);
+            check("single sample", WorkloadReplay.TypeStats.percentileMillis(new long[] { 3_000_000L }, 50) == 3.0);
+            check("no samples", WorkloadReplay.TypeStats.percentileMillis(new long[0], 99) == 0.0);
+
+            WorkloadReplay.TypeStats stats = new WorkloadReplay.TypeStats();
+            stats.record(1, null);
+            stats.record(2, new IllegalStateException("boom"));
+            check("error rate", stats.count() == 2 && stats.errorRate() == 0.5);
+        } catch (Exception e) {
+            failures++;
+            System.err.println("✗ Error occurred:");
+            e.printStackTrace();
+        }
+
+        System.out.println(failures == 0 ? "\n✓✓✓ ALL REPLAY TESTS PASSED ✓✓✓"
+                : "\n✗✗✗ " + failures + " REPLAY TEST(S) FAILED ✗✗✗");
+        System.out.println("\n=== All Tests Complete ===");
+    }
+
+    private static void check(String name, boolean passed) {
+        if (passed) {
+            System.out.println("✓ " + name);
+        } else {
+            failures++;
+            System.err.println("✗ " + name);
+        }
+    }
+}